@@ -0,0 +1,42 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * The policy by which a simulator hands out heap memory to
+ * {@link IRSimulator#malloc(long)}.
+ *
+ * An allocator belongs to a single simulator.  The simulator checks sizes
+ * before passing them on, so allocators only see nonnegative multiples of
+ * the word size.
+ */
+public interface Allocator {
+    /**
+     * Allocate a block of memory
+     * @param sim the simulator whose heap is allocated from
+     * @param size the number of bytes to be allocated
+     * @return the starting address of the block
+     */
+    long allocate(IRSimulator sim, long size);
+
+    /**
+     * Free a block of memory, if the allocator reuses memory
+     * @param sim the simulator whose heap is allocated from
+     * @param addr the starting address of the block, as returned by
+     *          {@link #allocate(IRSimulator, long)}
+     */
+    void free(IRSimulator sim, long addr);
+
+    /**
+     *
+     * @return the address above every block allocated so far
+     */
+    long top();
+
+    /**
+     *
+     * @return whether the allocator inspects the registers and stacks of
+     *          the simulator, see {@link IRSimulator#scanRoots}.  Values held
+     *          by compiled code are not visible there, so the simulator then
+     *          runs functions only in the tree interpreter or as bytecode.
+     */
+    boolean needsRoots();
+}
@@ -0,0 +1,84 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.Random;
+
+/**
+ * A heap backed by Java {@code long[]} pages.  This is the fastest backend
+ * for heaps that fit comfortably in the Java heap.
+ *
+ * A page is allocated and filled with garbage when one of its words is
+ * first accessed, so creating a heap takes time proportional to the number
+ * of pages rather than the number of words.
+ */
+public class ArrayHeap implements Heap {
+    private static final int PAGE_SHIFT = 10;
+
+    /** number of words per page */
+    public static final int PAGE_WORDS = 1 << PAGE_SHIFT;
+
+    private static final int PAGE_MASK = PAGE_WORDS - 1;
+
+    private final int size;
+    private final long[][] pages;
+    private final long seed;
+
+    /**
+     * @param words the number of words in the heap
+     */
+    public ArrayHeap(int words) {
+        this(words, new Random().nextLong());
+    }
+
+    /**
+     * @param words the number of words in the heap
+     * @param seed the seed of the garbage the heap is initialized with
+     */
+    public ArrayHeap(int words, long seed) {
+        if (words < 0)
+            throw new IllegalArgumentException("Invalid heap size: " + words);
+        size = words;
+        pages = new long[(int) (((long) words + PAGE_MASK) >>> PAGE_SHIFT)][];
+        this.seed = seed;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long seed() {
+        return seed;
+    }
+
+    @Override
+    public boolean isTouched(long from, long to) {
+        for (long i = from >>> PAGE_SHIFT; i << PAGE_SHIFT < to; i++)
+            if (pages[(int) i] != null) return true;
+        return false;
+    }
+
+    @Override
+    public long read(long index) {
+        long[] page = pages[(int) (index >>> PAGE_SHIFT)];
+        if (page == null) page = touch(index);
+        return page[(int) index & PAGE_MASK];
+    }
+
+    @Override
+    public void store(long index, long value) {
+        long[] page = pages[(int) (index >>> PAGE_SHIFT)];
+        if (page == null) page = touch(index);
+        page[(int) index & PAGE_MASK] = value;
+    }
+
+    private long[] touch(long index) {
+        int i = (int) (index >>> PAGE_SHIFT);
+        // The last page only covers the end of the heap.
+        int base = i << PAGE_SHIFT;
+        long[] page = new long[Math.min(PAGE_WORDS, size - base)];
+        Garbage.fill(seed, page, base);
+        pages[i] = page;
+        return page;
+    }
+}
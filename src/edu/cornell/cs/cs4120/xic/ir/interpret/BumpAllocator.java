@@ -0,0 +1,43 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * An allocator that hands out memory from the bottom of the heap up and
+ * never reuses it, so freeing memory has no effect.  This is the default.
+ */
+public class BumpAllocator implements Allocator {
+    /** heap pointer to lowest unallocated region */
+    private long heapPtr;
+
+    public BumpAllocator() {
+        this(0);
+    }
+
+    /**
+     * @param heapPtr the address of the lowest unallocated region
+     */
+    public BumpAllocator(long heapPtr) {
+        this.heapPtr = heapPtr;
+    }
+
+    @Override
+    public long allocate(IRSimulator sim, long size) {
+        long retval = heapPtr;
+        heapPtr += size;
+        return retval;
+    }
+
+    @Override
+    public void free(IRSimulator sim, long addr) {
+        // Memory is never reused.
+    }
+
+    @Override
+    public long top() {
+        return heapPtr;
+    }
+
+    @Override
+    public boolean needsRoots() {
+        return false;
+    }
+}
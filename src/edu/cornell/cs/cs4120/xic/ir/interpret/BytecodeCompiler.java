@@ -0,0 +1,513 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cornell.cs.cs4120.util.InternalCompilerError;
+import edu.cornell.cs.cs4120.xic.ir.IRBinOp;
+import edu.cornell.cs.cs4120.xic.ir.IRCJump;
+import edu.cornell.cs.cs4120.xic.ir.IRCall;
+import edu.cornell.cs.cs4120.xic.ir.IRConst;
+import edu.cornell.cs.cs4120.xic.ir.IRESeq;
+import edu.cornell.cs.cs4120.xic.ir.IRExp;
+import edu.cornell.cs.cs4120.xic.ir.IRExpr;
+import edu.cornell.cs.cs4120.xic.ir.IRFuncDecl;
+import edu.cornell.cs.cs4120.xic.ir.IRJump;
+import edu.cornell.cs.cs4120.xic.ir.IRLabel;
+import edu.cornell.cs.cs4120.xic.ir.IRMem;
+import edu.cornell.cs.cs4120.xic.ir.IRMove;
+import edu.cornell.cs.cs4120.xic.ir.IRName;
+import edu.cornell.cs.cs4120.xic.ir.IRNode;
+import edu.cornell.cs.cs4120.xic.ir.IRReturn;
+import edu.cornell.cs.cs4120.xic.ir.IRSeq;
+import edu.cornell.cs.cs4120.xic.ir.IRStmt;
+import edu.cornell.cs.cs4120.xic.ir.IRTemp;
+
+/**
+ * Linearizes the body of an {@link IRFuncDecl} into a
+ * {@link BytecodeFunction}.
+ *
+ * Instruction addresses (the values of NAME expressions) are the postorder
+ * indices computed by
+ * {@link edu.cornell.cs.cs4120.xic.ir.visit.InsnMapsBuilder}, so compiled
+ * code computes the same values as the tree interpreter.
+ *
+ * Statements of the shapes {@code MOVE(TEMP, BINOP(TEMP, CONST))},
+ * {@code MOVE(TEMP, MEM(ADD(TEMP, CONST)))} and
+ * {@code CJUMP(cmp(TEMP, TEMP), L)} over local registers are fused into
+ * single superinstructions.
+ */
+public class BytecodeCompiler {
+    private Map<IRNode, Long> insnToIndex;
+    private Map<String, Long> nameToIndex;
+    private Set<String> libraryFunctions;
+    private Map<String, Integer> functionIds;
+
+    /* state for the function being compiled */
+    private String funcName;
+    private FrameLayout layout;
+    private long baseIndex;
+    private int[] code;
+    private long[] operands;
+    private int[] slotA;
+    private int[] slotB;
+    private int pc;
+    private int depth;
+    private int maxDepth;
+    private List<String> names;
+    private Map<String, Integer> nameIds;
+    private Map<String, Integer> labelPcs;
+    private List<Integer> fixupPcs;
+    private List<String> fixupLabels;
+
+    /**
+     * @param insnToIndex map from instruction to address
+     * @param nameToIndex map from labeled name to address
+     * @param libraryFunctions names of functions implemented by the simulator
+     * @param functionIds map from function name to id in the simulator's
+     *          function table
+     */
+    public BytecodeCompiler(Map<IRNode, Long> insnToIndex,
+            Map<String, Long> nameToIndex, Set<String> libraryFunctions,
+            Map<String, Integer> functionIds) {
+        this.insnToIndex = insnToIndex;
+        this.nameToIndex = nameToIndex;
+        this.libraryFunctions = libraryFunctions;
+        this.functionIds = functionIds;
+    }
+
+    /**
+     * Linearize a function.
+     * @param fDecl the function to be compiled
+     * @param layout the slot assignment of the function's local registers
+     * @return the compiled function
+     */
+    public BytecodeFunction compile(IRFuncDecl fDecl, FrameLayout layout) {
+        funcName = fDecl.name();
+        this.layout = layout;
+        baseIndex = insnToIndex.get(fDecl);
+        code = new int[64];
+        operands = new long[64];
+        slotA = new int[64];
+        slotB = new int[64];
+        pc = 0;
+        depth = 0;
+        maxDepth = 0;
+        names = new ArrayList<>();
+        nameIds = new HashMap<>();
+        labelPcs = new HashMap<>();
+        fixupPcs = new ArrayList<>();
+        fixupLabels = new ArrayList<>();
+
+        // Labels may be followed by the end of the function body, so the
+        // address right after the body must be mappable as well.
+        long endIndex = insnToIndex.get(fDecl.body()) + 1;
+        int[] indexToPc = new int[(int) (endIndex - baseIndex + 1)];
+        Arrays.fill(indexToPc, -1);
+
+        compileStmt(fDecl.body());
+        // Running off the end of the body traps, as it does in the tree
+        // interpreter, rather than running into the next function.
+        emit(BytecodeFunction.TRAP,
+             nameId("No next instruction.  Forgot RETURN?"),
+             0);
+
+        for (Map.Entry<String, Integer> e : labelPcs.entrySet()) {
+            long index = nameToIndex.get(e.getKey());
+            indexToPc[(int) (index - baseIndex)] = e.getValue();
+        }
+
+        Map<String, Integer> trapPcs = new HashMap<>();
+        for (int i = 0; i < fixupPcs.size(); i++) {
+            String label = fixupLabels.get(i);
+            Integer target = labelPcs.get(label);
+            if (target == null) {
+                target = trapPcs.get(label);
+                if (target == null) {
+                    target = pc;
+                    trapPcs.put(label, target);
+                    emit(BytecodeFunction.TRAP, nameId(unresolvedLabel(label)),
+                         0);
+                }
+            }
+            operands[fixupPcs.get(i)] = target;
+        }
+
+        return new BytecodeFunction(funcName,
+                                    Arrays.copyOf(code, pc),
+                                    Arrays.copyOf(operands, pc),
+                                    Arrays.copyOf(slotA, pc),
+                                    Arrays.copyOf(slotB, pc),
+                                    names.toArray(new String[names.size()]),
+                                    layout,
+                                    maxDepth,
+                                    baseIndex,
+                                    indexToPc);
+    }
+
+    protected void compileStmt(IRStmt stmt) {
+        if (stmt instanceof IRSeq) {
+            for (IRStmt s : ((IRSeq) stmt).stmts())
+                compileStmt(s);
+        }
+        else if (stmt instanceof IRLabel) {
+            labelPcs.put(((IRLabel) stmt).name(), pc);
+        }
+        else if (stmt instanceof IRMove) {
+            IRMove move = (IRMove) stmt;
+            compileMove(move.target(), move.expr());
+        }
+        else if (stmt instanceof IRExp) {
+            compileExpr(((IRExp) stmt).expr());
+            emit(BytecodeFunction.POP, 0, -1);
+        }
+        else if (stmt instanceof IRJump) {
+            IRExpr target = ((IRJump) stmt).target();
+            if (target instanceof IRName)
+                emitJump(BytecodeFunction.JUMP, ((IRName) target).name(), 0);
+            else {
+                compileExpr(target);
+                emit(BytecodeFunction.JUMP_INDIRECT, 0, -1);
+            }
+        }
+        else if (stmt instanceof IRCJump) {
+            IRCJump cjump = (IRCJump) stmt;
+            if (!fuseCJump(cjump)) {
+                compileExpr(cjump.expr());
+                emitJump(BytecodeFunction.CJUMP, cjump.trueLabel(), -1);
+            }
+            if (cjump.hasFalseLabel())
+                emitJump(BytecodeFunction.JUMP, cjump.falseLabel(), 0);
+        }
+        else if (stmt instanceof IRReturn) {
+            emit(BytecodeFunction.RETURN, 0, 0);
+        }
+        else throw new InternalCompilerError("Cannot compile statement "
+                + stmt.label() + " in function " + funcName);
+    }
+
+    /**
+     * Compile a MOVE.  The destination is resolved here, so the execution
+     * engine does not need to know how a value on the stack was produced.
+     */
+    protected void compileMove(IRExpr target, IRExpr expr) {
+        if (target instanceof IRTemp) {
+            String tempName = ((IRTemp) target).name();
+            int slot = layout.slotOf(tempName);
+            if (slot >= 0 && fuseMove(slot, expr)) return;
+            compileExpr(expr);
+            if (slot >= 0)
+                emit(BytecodeFunction.STORE_TEMP, slot, -1);
+            else emit(BytecodeFunction.STORE_GLOBAL,
+                      layout.globalOf(tempName),
+                      -1);
+        }
+        else if (target instanceof IRMem) {
+            compileExpr(((IRMem) target).expr());
+            compileExpr(expr);
+            emit(BytecodeFunction.STORE_MEM, 0, -2);
+        }
+        else if (target instanceof IRESeq) {
+            compileStmt(((IRESeq) target).stmt());
+            compileMove(((IRESeq) target).expr(), expr);
+        }
+        else throw new InternalCompilerError("Invalid MOVE!");
+    }
+
+    /**
+     * Try to compile {@code MOVE(TEMP, expr)} into a superinstruction.
+     * @param dst slot of the destination register
+     * @return whether a superinstruction was emitted
+     */
+    protected boolean fuseMove(int dst, IRExpr expr) {
+        if (expr instanceof IRBinOp) {
+            IRBinOp binOp = (IRBinOp) expr;
+            int op = fusedOpcode(binOp.opType());
+            if (op < 0) return false;
+            int src = localSlot(binOp.left());
+            if (src >= 0 && binOp.right() instanceof IRConst) {
+                emitFused(op, dst, src, ((IRConst) binOp.right()).value());
+                return true;
+            }
+            src = localSlot(binOp.right());
+            if (src >= 0 && binOp.left() instanceof IRConst
+                    && isCommutative(binOp.opType())) {
+                emitFused(op, dst, src, ((IRConst) binOp.left()).value());
+                return true;
+            }
+        }
+        else if (expr instanceof IRMem) {
+            IRExpr addr = ((IRMem) expr).expr();
+            int base = localSlot(addr);
+            if (base >= 0) {
+                emitFused(BytecodeFunction.LOAD_OFFSET, dst, base, 0);
+                return true;
+            }
+            if (addr instanceof IRBinOp
+                    && ((IRBinOp) addr).opType() == IRBinOp.OpType.ADD) {
+                IRBinOp add = (IRBinOp) addr;
+                base = localSlot(add.left());
+                if (base >= 0 && add.right() instanceof IRConst) {
+                    emitFused(BytecodeFunction.LOAD_OFFSET,
+                              dst,
+                              base,
+                              ((IRConst) add.right()).value());
+                    return true;
+                }
+                base = localSlot(add.right());
+                if (base >= 0 && add.left() instanceof IRConst) {
+                    emitFused(BytecodeFunction.LOAD_OFFSET,
+                              dst,
+                              base,
+                              ((IRConst) add.left()).value());
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Try to compile the conditional jump of a CJUMP into a
+     * superinstruction.
+     * @return whether a superinstruction was emitted
+     */
+    protected boolean fuseCJump(IRCJump cjump) {
+        if (!(cjump.expr() instanceof IRBinOp)) return false;
+        IRBinOp cmp = (IRBinOp) cjump.expr();
+        int op;
+        switch (cmp.opType()) {
+        case EQ:
+            op = BytecodeFunction.JUMP_EQ;
+            break;
+        case NEQ:
+            op = BytecodeFunction.JUMP_NEQ;
+            break;
+        case LT:
+            op = BytecodeFunction.JUMP_LT;
+            break;
+        case GT:
+            op = BytecodeFunction.JUMP_GT;
+            break;
+        case LEQ:
+            op = BytecodeFunction.JUMP_LEQ;
+            break;
+        case GEQ:
+            op = BytecodeFunction.JUMP_GEQ;
+            break;
+        default:
+            return false;
+        }
+        int l = localSlot(cmp.left());
+        int r = localSlot(cmp.right());
+        if (l < 0 || r < 0) return false;
+        fixupPcs.add(pc);
+        fixupLabels.add(cjump.trueLabel());
+        emitFused(op, l, r, -1);
+        return true;
+    }
+
+    /**
+     *
+     * @return the slot of {@code expr} if it is a local register, or -1
+     */
+    private int localSlot(IRExpr expr) {
+        if (!(expr instanceof IRTemp)) return -1;
+        return layout.slotOf(((IRTemp) expr).name());
+    }
+
+    /**
+     *
+     * @return the superinstruction for {@code MOVE(TEMP, type(TEMP, CONST))},
+     *          or -1 if there is none
+     */
+    protected static int fusedOpcode(IRBinOp.OpType type) {
+        switch (type) {
+        case ADD:
+            return BytecodeFunction.ADD_CONST;
+        case SUB:
+            return BytecodeFunction.SUB_CONST;
+        case MUL:
+            return BytecodeFunction.MUL_CONST;
+        case AND:
+            return BytecodeFunction.AND_CONST;
+        case OR:
+            return BytecodeFunction.OR_CONST;
+        case XOR:
+            return BytecodeFunction.XOR_CONST;
+        case LSHIFT:
+            return BytecodeFunction.LSHIFT_CONST;
+        case RSHIFT:
+            return BytecodeFunction.RSHIFT_CONST;
+        case ARSHIFT:
+            return BytecodeFunction.ARSHIFT_CONST;
+        default:
+            return -1;
+        }
+    }
+
+    private static boolean isCommutative(IRBinOp.OpType type) {
+        switch (type) {
+        case ADD:
+        case MUL:
+        case AND:
+        case OR:
+        case XOR:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    protected void compileExpr(IRExpr expr) {
+        if (expr instanceof IRConst) {
+            emit(BytecodeFunction.CONST, ((IRConst) expr).value(), 1);
+        }
+        else if (expr instanceof IRTemp) {
+            String tempName = ((IRTemp) expr).name();
+            int slot = layout.slotOf(tempName);
+            if (slot >= 0)
+                emit(BytecodeFunction.TEMP, slot, 1);
+            else emit(BytecodeFunction.GLOBAL, layout.globalOf(tempName), 1);
+        }
+        else if (expr instanceof IRBinOp) {
+            IRBinOp binOp = (IRBinOp) expr;
+            compileExpr(binOp.left());
+            compileExpr(binOp.right());
+            emit(opcode(binOp.opType()), 0, -1);
+        }
+        else if (expr instanceof IRMem) {
+            compileExpr(((IRMem) expr).expr());
+            emit(BytecodeFunction.MEM, 0, 0);
+        }
+        else if (expr instanceof IRCall) {
+            IRCall call = (IRCall) expr;
+            int argc = call.args().size();
+            IRExpr target = call.target();
+            Integer function = null;
+            if (target instanceof IRName)
+                function = functionIds.get(((IRName) target).name());
+            // Other targets, including unknown names, are computed.  An
+            // unknown name traps before the arguments are evaluated.
+            if (function == null) compileExpr(target);
+            for (IRExpr arg : call.args())
+                compileExpr(arg);
+            if (function != null)
+                emit(BytecodeFunction.CALL,
+                     ((long) function << 32) | argc,
+                     1 - argc);
+            else emit(BytecodeFunction.CALL_INDIRECT,
+                      (insnToIndex.get(call) << 32) | argc,
+                      -argc);
+        }
+        else if (expr instanceof IRName) {
+            String name = ((IRName) expr).name();
+            if (libraryFunctions.contains(name))
+                emit(BytecodeFunction.CONST, -1, 1);
+            else if (nameToIndex.containsKey(name))
+                emit(BytecodeFunction.CONST, nameToIndex.get(name), 1);
+            else emit(BytecodeFunction.TRAP,
+                      nameId("Could not find label '" + name + "'!"),
+                      1);
+        }
+        else if (expr instanceof IRESeq) {
+            compileStmt(((IRESeq) expr).stmt());
+            compileExpr(((IRESeq) expr).expr());
+        }
+        else throw new InternalCompilerError("Cannot compile expression "
+                + expr.label() + " in function " + funcName);
+    }
+
+    protected static int opcode(IRBinOp.OpType type) {
+        switch (type) {
+        case ADD:
+            return BytecodeFunction.ADD;
+        case SUB:
+            return BytecodeFunction.SUB;
+        case MUL:
+            return BytecodeFunction.MUL;
+        case HMUL:
+            return BytecodeFunction.HMUL;
+        case DIV:
+            return BytecodeFunction.DIV;
+        case MOD:
+            return BytecodeFunction.MOD;
+        case AND:
+            return BytecodeFunction.AND;
+        case OR:
+            return BytecodeFunction.OR;
+        case XOR:
+            return BytecodeFunction.XOR;
+        case LSHIFT:
+            return BytecodeFunction.LSHIFT;
+        case RSHIFT:
+            return BytecodeFunction.RSHIFT;
+        case ARSHIFT:
+            return BytecodeFunction.ARSHIFT;
+        case EQ:
+            return BytecodeFunction.EQ;
+        case NEQ:
+            return BytecodeFunction.NEQ;
+        case LT:
+            return BytecodeFunction.LT;
+        case GT:
+            return BytecodeFunction.GT;
+        case LEQ:
+            return BytecodeFunction.LEQ;
+        case GEQ:
+            return BytecodeFunction.GEQ;
+        default:
+            throw new InternalCompilerError("Invalid binary operation");
+        }
+    }
+
+    private String unresolvedLabel(String label) {
+        if (nameToIndex.containsKey(label))
+            return "Jump to label '" + label + "' outside of function '"
+                    + funcName + "'!";
+        return "Could not find label '" + label + "'!";
+    }
+
+    /**
+     * Emit a jump whose target is patched once all labels are known.
+     */
+    private void emitJump(int opcode, String label, int stackEffect) {
+        fixupPcs.add(pc);
+        fixupLabels.add(label);
+        emit(opcode, -1, stackEffect);
+    }
+
+    private void emitFused(int opcode, int a, int b, long operand) {
+        emit(opcode, operand, 0);
+        slotA[pc - 1] = a;
+        slotB[pc - 1] = b;
+    }
+
+    private void emit(int opcode, long operand, int stackEffect) {
+        if (pc == code.length) {
+            code = Arrays.copyOf(code, pc * 2);
+            operands = Arrays.copyOf(operands, pc * 2);
+            slotA = Arrays.copyOf(slotA, pc * 2);
+            slotB = Arrays.copyOf(slotB, pc * 2);
+        }
+        code[pc] = opcode;
+        operands[pc] = operand;
+        pc++;
+        depth += stackEffect;
+        if (depth > maxDepth) maxDepth = depth;
+    }
+
+    private int nameId(String name) {
+        Integer id = nameIds.get(name);
+        if (id == null) {
+            id = names.size();
+            names.add(name);
+            nameIds.put(name, id);
+        }
+        return id;
+    }
+}
@@ -0,0 +1,235 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * A function body linearized into a flat instruction array.
+ *
+ * Each instruction consists of an opcode in {@link #code} and a single
+ * operand in {@link #operands} at the same index.  Jump targets are resolved
+ * to instruction indices when the function is prepared, so the execution
+ * engine only needs a program counter and an operand stack.
+ *
+ * Common statement shapes are fused into superinstructions that work on
+ * local registers directly.  These take up to two register slots from
+ * {@link #slotA} and {@link #slotB} in addition to the operand.
+ *
+ * Instances are built by {@link BytecodeCompiler} and are not modified
+ * afterwards.
+ */
+public class BytecodeFunction {
+    /* Opcodes.  Unless noted otherwise, the operand is unused. */
+    /** push the operand */
+    public static final int CONST = 0;
+    /** push the value of the local register in slot {@code operand} */
+    public static final int TEMP = 1;
+    /** pop an address and push the value stored there */
+    public static final int MEM = 2;
+    /* binary operations: pop right, pop left, push result */
+    public static final int ADD = 3;
+    public static final int SUB = 4;
+    public static final int MUL = 5;
+    public static final int HMUL = 6;
+    public static final int DIV = 7;
+    public static final int MOD = 8;
+    public static final int AND = 9;
+    public static final int OR = 10;
+    public static final int XOR = 11;
+    public static final int LSHIFT = 12;
+    public static final int RSHIFT = 13;
+    public static final int ARSHIFT = 14;
+    public static final int EQ = 15;
+    public static final int NEQ = 16;
+    public static final int LT = 17;
+    public static final int GT = 18;
+    public static final int LEQ = 19;
+    public static final int GEQ = 20;
+    /**
+     * pop arguments and call the function with id {@code operand >>> 32};
+     * the low 32 bits of the operand hold the number of arguments
+     */
+    public static final int CALL = 21;
+    /**
+     * pop arguments, then pop the address of the function to be called;
+     * the high 32 bits of the operand hold the address of the CALL (which
+     * identifies the call site's inline cache), the low 32 bits the number
+     * of arguments
+     */
+    public static final int CALL_INDIRECT = 22;
+    /** pop a value into the local register in slot {@code operand} */
+    public static final int STORE_TEMP = 23;
+    /** pop a value, then pop an address, and store the value there */
+    public static final int STORE_MEM = 24;
+    /** pop and discard a value */
+    public static final int POP = 25;
+    /** continue at instruction {@code operand} */
+    public static final int JUMP = 26;
+    /** pop an instruction address (as produced by NAME) and jump there */
+    public static final int JUMP_INDIRECT = 27;
+    /** pop a condition; continue at instruction {@code operand} if it is 1 */
+    public static final int CJUMP = 28;
+    /** return from the function */
+    public static final int RETURN = 29;
+    /** trap with the message {@code names[operand]} */
+    public static final int TRAP = 30;
+    /** push the value of the global register with code {@code operand} */
+    public static final int GLOBAL = 31;
+    /** pop a value into the global register with code {@code operand} */
+    public static final int STORE_GLOBAL = 32;
+
+    /*
+     * Superinstructions.  Fused binary operations store
+     * {@code temp[slotA] = temp[slotB] op operand}.
+     */
+    public static final int ADD_CONST = 33;
+    public static final int SUB_CONST = 34;
+    public static final int MUL_CONST = 35;
+    public static final int AND_CONST = 36;
+    public static final int OR_CONST = 37;
+    public static final int XOR_CONST = 38;
+    public static final int LSHIFT_CONST = 39;
+    public static final int RSHIFT_CONST = 40;
+    public static final int ARSHIFT_CONST = 41;
+    /** {@code temp[slotA] = mem[temp[slotB] + operand]} */
+    public static final int LOAD_OFFSET = 42;
+    /*
+     * fused comparisons and conditional jumps: continue at instruction
+     * {@code operand} if {@code temp[slotA] cmp temp[slotB]}
+     */
+    public static final int JUMP_EQ = 43;
+    public static final int JUMP_NEQ = 44;
+    public static final int JUMP_LT = 45;
+    public static final int JUMP_GT = 46;
+    public static final int JUMP_LEQ = 47;
+    public static final int JUMP_GEQ = 48;
+
+    private static final String[] MNEMONICS = { "CONST", "TEMP", "MEM", "ADD",
+            "SUB", "MUL", "HMUL", "DIV", "MOD", "AND", "OR", "XOR", "LSHIFT",
+            "RSHIFT", "ARSHIFT", "EQ", "NEQ", "LT", "GT", "LEQ", "GEQ", "CALL",
+            "CALL_INDIRECT", "STORE_TEMP", "STORE_MEM", "POP", "JUMP",
+            "JUMP_INDIRECT", "CJUMP", "RETURN", "TRAP", "GLOBAL",
+            "STORE_GLOBAL", "ADD_CONST", "SUB_CONST", "MUL_CONST",
+            "AND_CONST", "OR_CONST", "XOR_CONST", "LSHIFT_CONST",
+            "RSHIFT_CONST", "ARSHIFT_CONST", "LOAD_OFFSET", "JUMP_EQ",
+            "JUMP_NEQ", "JUMP_LT", "JUMP_GT", "JUMP_LEQ", "JUMP_GEQ" };
+
+    /** name of the function */
+    final String name;
+
+    /** opcodes */
+    final int[] code;
+
+    /** operands, one per opcode */
+    final long[] operands;
+
+    /** first register slot of superinstructions, one per opcode */
+    final int[] slotA;
+
+    /** second register slot of superinstructions, one per opcode */
+    final int[] slotB;
+
+    /** names referenced by operands (trap messages) */
+    final String[] names;
+
+    /** slot assignment of the local registers */
+    final FrameLayout layout;
+
+    /** maximum depth of the operand stack */
+    final int maxStack;
+
+    /** address of the first instruction of this function in the IR tree */
+    final long baseIndex;
+
+    /**
+     * map from IR instruction address (relative to {@link #baseIndex})
+     * to program counter, or -1 if the address is not a jump target
+     */
+    final int[] indexToPc;
+
+    BytecodeFunction(String name, int[] code, long[] operands, int[] slotA,
+            int[] slotB, String[] names, FrameLayout layout, int maxStack,
+            long baseIndex, int[] indexToPc) {
+        this.name = name;
+        this.code = code;
+        this.operands = operands;
+        this.slotA = slotA;
+        this.slotB = slotB;
+        this.names = names;
+        this.layout = layout;
+        this.maxStack = maxStack;
+        this.baseIndex = baseIndex;
+        this.indexToPc = indexToPc;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int size() {
+        return code.length;
+    }
+
+    /**
+     *
+     * @param index an IR instruction address, as produced by NAME
+     * @return the program counter of the instruction at {@code index}, or -1
+     *          if {@code index} does not name a label in this function
+     */
+    public int pcOf(long index) {
+        long offset = index - baseIndex;
+        if (offset < 0 || offset >= indexToPc.length) return -1;
+        return indexToPc[(int) offset];
+    }
+
+    /**
+     *
+     * @param pc a program counter
+     * @return a human-readable rendering of the instruction at {@code pc}
+     */
+    public String disassemble(int pc) {
+        int op = code[pc];
+        long operand = operands[pc];
+        StringBuilder sb = new StringBuilder();
+        sb.append(pc).append(": ").append(MNEMONICS[op]);
+        switch (op) {
+        case CONST:
+        case JUMP:
+        case CJUMP:
+            sb.append(' ').append(operand);
+            break;
+        case TEMP:
+        case STORE_TEMP:
+            sb.append(' ').append(layout.tempAt((int) operand));
+            break;
+        case GLOBAL:
+        case STORE_GLOBAL:
+            sb.append(' ').append(layout.globalAt((int) operand));
+            break;
+        case TRAP:
+            sb.append(' ').append(names[(int) operand]);
+            break;
+        case CALL:
+            sb.append(" #").append(operand >>> 32);
+            sb.append(' ').append((int) operand);
+            break;
+        case CALL_INDIRECT:
+            sb.append(' ').append((int) operand);
+            break;
+        default:
+            if (op >= ADD_CONST) {
+                sb.append(' ').append(layout.tempAt(slotA[pc]));
+                sb.append(' ').append(layout.tempAt(slotB[pc]));
+                sb.append(' ').append(operand);
+            }
+            break;
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("FUNC ").append(name).append('\n');
+        for (int pc = 0; pc < code.length; pc++)
+            sb.append("    ").append(disassemble(pc)).append('\n');
+        return sb.toString();
+    }
+}
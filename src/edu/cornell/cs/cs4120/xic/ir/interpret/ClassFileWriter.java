@@ -0,0 +1,609 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.cornell.cs.cs4120.util.InternalCompilerError;
+import polyglot.util.SerialVersionUID;
+
+/**
+ * A minimal writer for JVM class files, used by {@link JitCompiler}.
+ *
+ * Only what the JIT needs is supported: a constant pool, methods with a
+ * Code attribute, and labels for branches.  Classes are emitted with class
+ * file version 49, which the JVM verifies by type inference, so no stack
+ * map frames have to be computed.
+ */
+class ClassFileWriter {
+    /* access flags */
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    /* opcodes */
+    static final int ACONST_NULL = 0x01;
+    static final int LCONST_0 = 0x09;
+    static final int LCONST_1 = 0x0a;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int LDC2_W = 0x14;
+    static final int ILOAD = 0x15;
+    static final int LLOAD = 0x16;
+    static final int ALOAD = 0x19;
+    static final int LASTORE = 0x50;
+    static final int LSTORE = 0x37;
+    static final int POP2 = 0x58;
+    static final int DUP = 0x59;
+    static final int DUP2 = 0x5c;
+    static final int LADD = 0x61;
+    static final int LSUB = 0x65;
+    static final int LMUL = 0x69;
+    static final int LDIV = 0x6d;
+    static final int LREM = 0x71;
+    static final int LSHL = 0x79;
+    static final int LSHR = 0x7b;
+    static final int LUSHR = 0x7d;
+    static final int LAND = 0x7f;
+    static final int LOR = 0x81;
+    static final int LXOR = 0x83;
+    static final int L2I = 0x88;
+    static final int LCMP = 0x94;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IFLT = 0x9b;
+    static final int IFGE = 0x9c;
+    static final int IFGT = 0x9d;
+    static final int IFLE = 0x9e;
+    static final int GOTO = 0xa7;
+    static final int TABLESWITCH = 0xaa;
+    static final int LRETURN = 0xad;
+    static final int RETURN = 0xb1;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int INVOKEINTERFACE = 0xb9;
+    static final int NEWARRAY = 0xbc;
+    static final int ATHROW = 0xbf;
+    static final int WIDE = 0xc4;
+
+    /** array type code of long[] for NEWARRAY */
+    static final int T_LONG = 11;
+
+    /* constant pool tags */
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final String className;
+    private final int thisClass;
+    private final int superClass;
+    private final int[] interfaces;
+
+    private final ByteArrayOutputStream pool;
+    private final DataOutputStream poolOut;
+    private final Map<String, Integer> poolIndices;
+    private int poolCount;
+
+    private final List<MethodWriter> methods;
+
+    /**
+     * @param className internal name of the class (e.g., {@code a/b/C})
+     * @param superName internal name of the superclass
+     * @param interfaceNames internal names of the implemented interfaces
+     */
+    ClassFileWriter(String className, String superName,
+            String... interfaceNames) {
+        this.className = className;
+        pool = new ByteArrayOutputStream();
+        poolOut = new DataOutputStream(pool);
+        poolIndices = new HashMap<>();
+        poolCount = 1;
+        methods = new ArrayList<>();
+        thisClass = classRef(className);
+        superClass = classRef(superName);
+        interfaces = new int[interfaceNames.length];
+        for (int i = 0; i < interfaceNames.length; i++)
+            interfaces[i] = classRef(interfaceNames[i]);
+    }
+
+    String className() {
+        return className;
+    }
+
+    /**
+     * Add a method to the class.
+     * @param access access flags
+     * @param name name of the method
+     * @param descriptor descriptor of the method
+     * @return a writer for the method's code
+     */
+    MethodWriter method(int access, String name, String descriptor) {
+        MethodWriter m = new MethodWriter(access, utf8(name), utf8(descriptor));
+        methods.add(m);
+        return m;
+    }
+
+    /**
+     *
+     * @return the class file
+     */
+    byte[] toByteArray() {
+        int codeAttr = utf8("Code");
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolOut.flush();
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaces.length);
+            for (int i : interfaces)
+                out.writeShort(i);
+            out.writeShort(0); // fields
+            out.writeShort(methods.size());
+            for (MethodWriter m : methods)
+                m.write(out, codeAttr);
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError(e);
+        }
+    }
+
+    int utf8(String s) {
+        String key = "U" + s;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(CONSTANT_UTF8);
+            poolOut.writeUTF(s);
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError(e);
+        }
+        return addEntry(key, 1);
+    }
+
+    int classRef(String internalName) {
+        return ref("C", CONSTANT_CLASS, utf8(internalName));
+    }
+
+    int string(String s) {
+        return ref("S", CONSTANT_STRING, utf8(s));
+    }
+
+    int intConst(int value) {
+        String key = "I" + value;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(CONSTANT_INTEGER);
+            poolOut.writeInt(value);
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError(e);
+        }
+        return addEntry(key, 1);
+    }
+
+    int longConst(long value) {
+        String key = "J" + value;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(CONSTANT_LONG);
+            poolOut.writeLong(value);
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError(e);
+        }
+        // Long constants take up two entries.
+        return addEntry(key, 2);
+    }
+
+    int methodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, name, descriptor);
+    }
+
+    int interfaceMethodRef(String owner, String name, String descriptor) {
+        return memberRef(CONSTANT_INTERFACE_METHODREF, owner, name, descriptor);
+    }
+
+    private int memberRef(int tag, String owner, String name,
+            String descriptor) {
+        int ownerIndex = classRef(owner);
+        int nat = nameAndType(name, descriptor);
+        String key = "M" + tag + ":" + ownerIndex + ":" + nat;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(ownerIndex);
+            poolOut.writeShort(nat);
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError(e);
+        }
+        return addEntry(key, 1);
+    }
+
+    private int nameAndType(String name, String descriptor) {
+        int nameIndex = utf8(name);
+        int descIndex = utf8(descriptor);
+        String key = "N" + nameIndex + ":" + descIndex;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(CONSTANT_NAME_AND_TYPE);
+            poolOut.writeShort(nameIndex);
+            poolOut.writeShort(descIndex);
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError(e);
+        }
+        return addEntry(key, 1);
+    }
+
+    private int ref(String kind, int tag, int target) {
+        String key = kind + target;
+        Integer index = poolIndices.get(key);
+        if (index != null) return index;
+        try {
+            poolOut.writeByte(tag);
+            poolOut.writeShort(target);
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError(e);
+        }
+        return addEntry(key, 1);
+    }
+
+    private int addEntry(String key, int size) {
+        int index = poolCount;
+        poolCount += size;
+        if (poolCount > 0xffff)
+            throw new TooLargeException("Constant pool overflow");
+        poolIndices.put(key, index);
+        return index;
+    }
+
+    /**
+     *
+     * @param descriptor a method descriptor
+     * @return the number of stack words taken by the arguments
+     */
+    static int argumentWords(String descriptor) {
+        int words = 0;
+        int i = 1;
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+            if (c == 'J' || c == 'D') {
+                words += 2;
+                i++;
+                continue;
+            }
+            while (c == '[')
+                c = descriptor.charAt(++i);
+            if (c == 'L') i = descriptor.indexOf(';', i);
+            words++;
+            i++;
+        }
+        return words;
+    }
+
+    /**
+     *
+     * @param descriptor a method descriptor
+     * @return the number of stack words taken by the result
+     */
+    static int returnWords(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        if (c == 'V') return 0;
+        return c == 'J' || c == 'D' ? 2 : 1;
+    }
+
+    /**
+     * Thrown when a class exceeds one of the limits of the class file
+     * format.
+     */
+    static class TooLargeException extends RuntimeException {
+        private static final long serialVersionUID =
+                SerialVersionUID.generate();
+
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A position in the code of a method.
+     */
+    static class Label {
+        private int offset = -1;
+    }
+
+    /**
+     * Writer for the code of a single method.  The maximum stack depth is
+     * tracked as instructions are emitted; it assumes that the stack depth
+     * at every label is the depth at the point where the label is placed.
+     */
+    class MethodWriter {
+        private final int access;
+        private final int name;
+        private final int descriptor;
+        private final ByteArrayOutputStream code;
+        private int depth;
+        private int maxStack;
+        private int maxLocals;
+
+        /* pending branches: position of the offset, position of the
+           instruction, target, and whether the offset is 4 bytes wide */
+        private final List<Integer> fixupPositions;
+        private final List<Integer> fixupInsns;
+        private final List<Label> fixupLabels;
+        private final List<Boolean> fixupWide;
+
+        private MethodWriter(int access, int name, int descriptor) {
+            this.access = access;
+            this.name = name;
+            this.descriptor = descriptor;
+            code = new ByteArrayOutputStream();
+            fixupPositions = new ArrayList<>();
+            fixupInsns = new ArrayList<>();
+            fixupLabels = new ArrayList<>();
+            fixupWide = new ArrayList<>();
+        }
+
+        void maxLocals(int maxLocals) {
+            this.maxLocals = maxLocals;
+        }
+
+        /**
+         * Emit an instruction without operands.
+         * @param opcode the opcode
+         * @param stackEffect the change in stack depth, in words
+         */
+        void op(int opcode, int stackEffect) {
+            code.write(opcode);
+            adjust(stackEffect);
+        }
+
+        void lconst(long value) {
+            if (value == 0)
+                op(LCONST_0, 2);
+            else if (value == 1)
+                op(LCONST_1, 2);
+            else {
+                code.write(LDC2_W);
+                u2(longConst(value));
+                adjust(2);
+            }
+        }
+
+        void iconst(int value) {
+            if (value >= -1 && value <= 5)
+                op(0x03 + value, 1);
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                code.write(BIPUSH);
+                code.write(value);
+                adjust(1);
+            }
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                code.write(SIPUSH);
+                u2(value);
+                adjust(1);
+            }
+            else {
+                int index = intConst(value);
+                if (index <= 0xff) {
+                    code.write(LDC);
+                    code.write(index);
+                }
+                else {
+                    code.write(LDC_W);
+                    u2(index);
+                }
+                adjust(1);
+            }
+        }
+
+        void ldcString(String s) {
+            code.write(LDC_W);
+            u2(string(s));
+            adjust(1);
+        }
+
+        void aload(int local) {
+            local(ALOAD, local);
+            adjust(1);
+        }
+
+        void iload(int local) {
+            local(ILOAD, local);
+            adjust(1);
+        }
+
+        void lload(int local) {
+            local(LLOAD, local);
+            adjust(2);
+        }
+
+        void lstore(int local) {
+            local(LSTORE, local);
+            adjust(-2);
+        }
+
+        private void local(int opcode, int local) {
+            if (local > 0xff) {
+                code.write(WIDE);
+                code.write(opcode);
+                u2(local);
+            }
+            else {
+                code.write(opcode);
+                code.write(local);
+            }
+        }
+
+        void newLongArray() {
+            code.write(NEWARRAY);
+            code.write(T_LONG);
+        }
+
+        void invokeStatic(String owner, String name, String desc) {
+            code.write(INVOKESTATIC);
+            u2(methodRef(owner, name, desc));
+            adjust(returnWords(desc) - argumentWords(desc));
+        }
+
+        void invokeSpecial(String owner, String name, String desc) {
+            code.write(INVOKESPECIAL);
+            u2(methodRef(owner, name, desc));
+            adjust(returnWords(desc) - argumentWords(desc) - 1);
+        }
+
+        void invokeInterface(String owner, String name, String desc) {
+            int args = argumentWords(desc);
+            code.write(INVOKEINTERFACE);
+            u2(interfaceMethodRef(owner, name, desc));
+            code.write(args + 1);
+            code.write(0);
+            adjust(returnWords(desc) - args - 1);
+        }
+
+        /**
+         * Emit a branch.
+         * @param opcode a conditional branch or GOTO
+         * @param target the branch target
+         * @param stackEffect the change in stack depth, in words
+         */
+        void jump(int opcode, Label target, int stackEffect) {
+            int insn = code.size();
+            code.write(opcode);
+            fixup(insn, target, false);
+            u2(0);
+            adjust(stackEffect);
+        }
+
+        /**
+         * Emit a TABLESWITCH on the int on top of the stack.
+         * @param low the key of the first target
+         * @param dflt the target for keys out of range
+         * @param targets the targets for keys {@code low} and up
+         */
+        void tableSwitch(int low, Label dflt, Label[] targets) {
+            int insn = code.size();
+            code.write(TABLESWITCH);
+            while (code.size() % 4 != 0)
+                code.write(0);
+            fixup(insn, dflt, true);
+            u4(0);
+            u4(low);
+            u4(low + targets.length - 1);
+            for (Label l : targets) {
+                fixup(insn, l, true);
+                u4(0);
+            }
+            adjust(-1);
+        }
+
+        void mark(Label label) {
+            label.offset = code.size();
+        }
+
+        /**
+         * Set the stack depth, e.g., after an unconditional transfer of
+         * control.
+         */
+        void depth(int depth) {
+            this.depth = depth;
+        }
+
+        /**
+         *
+         * @return the current stack depth, in words
+         */
+        int depth() {
+            return depth;
+        }
+
+        private void fixup(int insn, Label target, boolean wide) {
+            fixupPositions.add(code.size());
+            fixupInsns.add(insn);
+            fixupLabels.add(target);
+            fixupWide.add(wide);
+        }
+
+        private void adjust(int stackEffect) {
+            depth += stackEffect;
+            if (depth > maxStack) maxStack = depth;
+        }
+
+        private void u2(int value) {
+            code.write(value >>> 8);
+            code.write(value);
+        }
+
+        private void u4(int value) {
+            u2(value >>> 16);
+            u2(value);
+        }
+
+        private void write(DataOutputStream out, int codeAttr)
+                throws IOException {
+            byte[] bytes = code.toByteArray();
+            if (bytes.length > 0xffff)
+                throw new TooLargeException("Method too large");
+            for (int i = 0; i < fixupPositions.size(); i++) {
+                Label target = fixupLabels.get(i);
+                if (target.offset < 0)
+                    throw new InternalCompilerError("Unplaced label");
+                int offset = target.offset - fixupInsns.get(i);
+                int pos = fixupPositions.get(i);
+                if (fixupWide.get(i)) {
+                    bytes[pos] = (byte) (offset >>> 24);
+                    bytes[pos + 1] = (byte) (offset >>> 16);
+                    bytes[pos + 2] = (byte) (offset >>> 8);
+                    bytes[pos + 3] = (byte) offset;
+                }
+                else {
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new TooLargeException("Branch offset too large");
+                    bytes[pos] = (byte) (offset >>> 8);
+                    bytes[pos + 1] = (byte) offset;
+                }
+            }
+            out.writeShort(access);
+            out.writeShort(name);
+            out.writeShort(descriptor);
+            out.writeShort(1);
+            out.writeShort(codeAttr);
+            out.writeInt(12 + bytes.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.cornell.cs.cs4120.util.InternalCompilerError;
+import edu.cornell.cs.cs4120.xic.ir.IRBinOp;
+import edu.cornell.cs.cs4120.xic.ir.IRCJump;
+import edu.cornell.cs.cs4120.xic.ir.IRCall;
+import edu.cornell.cs.cs4120.xic.ir.IRConst;
+import edu.cornell.cs.cs4120.xic.ir.IRESeq;
+import edu.cornell.cs.cs4120.xic.ir.IRExp;
+import edu.cornell.cs.cs4120.xic.ir.IRExpr;
+import edu.cornell.cs.cs4120.xic.ir.IRFuncDecl;
+import edu.cornell.cs.cs4120.xic.ir.IRJump;
+import edu.cornell.cs.cs4120.xic.ir.IRLabel;
+import edu.cornell.cs.cs4120.xic.ir.IRMem;
+import edu.cornell.cs.cs4120.xic.ir.IRMove;
+import edu.cornell.cs.cs4120.xic.ir.IRName;
+import edu.cornell.cs.cs4120.xic.ir.IRNode;
+import edu.cornell.cs.cs4120.xic.ir.IRReturn;
+import edu.cornell.cs.cs4120.xic.ir.IRSeq;
+import edu.cornell.cs.cs4120.xic.ir.IRStmt;
+import edu.cornell.cs.cs4120.xic.ir.IRTemp;
+import edu.cornell.cs.cs4120.xic.ir.interpret.ClosureFunction.ExprCode;
+import edu.cornell.cs.cs4120.xic.ir.interpret.ClosureFunction.StmtCode;
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.Trap;
+
+/**
+ * Compiles the body of an {@link IRFuncDecl} into a
+ * {@link ClosureFunction}.
+ *
+ * Every IR subtree is compiled once into a closure that has its children
+ * already linked in, and binary operations get a closure specialized to
+ * their operator.  Control flow is only supported at the statement level:
+ * a function containing an ESEQ whose statement is not straight-line code
+ * cannot be compiled.
+ */
+public class ClosureCompiler {
+    private Map<IRNode, Long> insnToIndex;
+    private Map<String, Long> nameToIndex;
+    private Set<String> libraryFunctions;
+    private Map<String, Integer> functionIds;
+
+    /* state for the function being compiled */
+    private String funcName;
+    private FrameLayout layout;
+    private Map<String, Integer> labelIndices;
+    private List<StmtCode> traps;
+    private Map<String, Integer> trapIndices;
+    private int trapBase;
+
+    /**
+     * @param insnToIndex map from instruction to address
+     * @param nameToIndex map from labeled name to address
+     * @param libraryFunctions names of functions implemented by the simulator
+     * @param functionIds map from function name to id in the simulator's
+     *          function table
+     */
+    public ClosureCompiler(Map<IRNode, Long> insnToIndex,
+            Map<String, Long> nameToIndex, Set<String> libraryFunctions,
+            Map<String, Integer> functionIds) {
+        this.insnToIndex = insnToIndex;
+        this.nameToIndex = nameToIndex;
+        this.libraryFunctions = libraryFunctions;
+        this.functionIds = functionIds;
+    }
+
+    /**
+     * Compile a function.
+     * @param fDecl the function to be compiled
+     * @param layout the slot assignment of the function's local registers
+     * @return the compiled function, or null if the function uses control
+     *          flow that cannot be compiled to closures
+     */
+    public ClosureFunction compile(IRFuncDecl fDecl, FrameLayout layout) {
+        if (!canCompile(fDecl.body(), false)) return null;
+
+        funcName = fDecl.name();
+        this.layout = layout;
+        labelIndices = new HashMap<>();
+
+        List<IRStmt> flat = new ArrayList<>();
+        flatten(fDecl.body(), flat);
+
+        // Jumps to labels that are not in this function, and running off
+        // the end of the body, lead to trapping statements placed after
+        // the body, as they trap in the tree interpreter.
+        traps = new ArrayList<>();
+        trapIndices = new HashMap<>();
+        trapBase = flat.size();
+        traps.add(trap("No next instruction.  Forgot RETURN?"));
+
+        long baseIndex = insnToIndex.get(fDecl);
+        long endIndex = insnToIndex.get(fDecl.body()) + 1;
+        final int[] indexToStmt = new int[(int) (endIndex - baseIndex + 1)];
+        Arrays.fill(indexToStmt, -1);
+        for (Map.Entry<String, Integer> e : labelIndices.entrySet())
+            indexToStmt[(int) (nameToIndex.get(e.getKey()) - baseIndex)] =
+                    e.getValue();
+
+        List<StmtCode> stmts = new ArrayList<>();
+        for (int i = 0; i < flat.size(); i++)
+            stmts.add(compileStmt(flat.get(i), i + 1, baseIndex, indexToStmt));
+        stmts.addAll(traps);
+
+        return new ClosureFunction(funcName,
+                                   layout,
+                                   stmts.toArray(new StmtCode[stmts.size()]));
+    }
+
+    /**
+     * Check whether a statement can be compiled.
+     * @param stmt the statement
+     * @param straightLine whether the statement must be free of control flow
+     */
+    private boolean canCompile(IRStmt stmt, boolean straightLine) {
+        if (stmt instanceof IRSeq) {
+            for (IRStmt s : ((IRSeq) stmt).stmts())
+                if (!canCompile(s, straightLine)) return false;
+            return true;
+        }
+        if (stmt instanceof IRMove) {
+            IRExpr target = ((IRMove) stmt).target();
+            if (!(target instanceof IRTemp) && !(target instanceof IRMem))
+                return false;
+            return canCompile(target) && canCompile(((IRMove) stmt).expr());
+        }
+        if (stmt instanceof IRExp) return canCompile(((IRExp) stmt).expr());
+        if (straightLine) return false;
+        if (stmt instanceof IRJump) return canCompile(((IRJump) stmt).target());
+        if (stmt instanceof IRCJump) return canCompile(((IRCJump) stmt).expr());
+        return stmt instanceof IRLabel || stmt instanceof IRReturn;
+    }
+
+    private boolean canCompile(IRNode n) {
+        if (n instanceof IRESeq)
+            return canCompile(((IRESeq) n).stmt(), true)
+                    && canCompile(((IRESeq) n).expr());
+        for (IRNode child : n.children)
+            if (!canCompile(child)) return false;
+        return true;
+    }
+
+    private void flatten(IRStmt stmt, List<IRStmt> flat) {
+        if (stmt instanceof IRSeq) {
+            for (IRStmt s : ((IRSeq) stmt).stmts())
+                flatten(s, flat);
+        }
+        else if (stmt instanceof IRLabel)
+            labelIndices.put(((IRLabel) stmt).name(), flat.size());
+        else flat.add(stmt);
+    }
+
+    /**
+     * Compile a statement.
+     * @param stmt the statement
+     * @param next the index of the statement that follows {@code stmt}
+     */
+    protected StmtCode compileStmt(IRStmt stmt, final int next,
+            final long baseIndex, final int[] indexToStmt) {
+        if (stmt instanceof IRMove) {
+            IRExpr target = ((IRMove) stmt).target();
+            final ExprCode value = compileExpr(((IRMove) stmt).expr());
+            if (target instanceof IRMem) {
+                final ExprCode addr = compileExpr(((IRMem) target).expr());
+                return f -> {
+                    long a = addr.eval(f);
+                    long v = value.eval(f);
+                    if (f.simulator().debugLevel > 0)
+                        System.out.println("mem[" + a + "]=" + v);
+                    f.simulator().store(a, v);
+                    return next;
+                };
+            }
+            final String tempName = ((IRTemp) target).name();
+            final int slot = layout.slotOf(tempName);
+            final int code = layout.globalOf(tempName);
+            if (slot >= 0) return f -> {
+                long v = value.eval(f);
+                if (f.simulator().debugLevel > 0)
+                    System.out.println("temp[" + tempName + "]=" + v);
+                f.put(slot, v);
+                return next;
+            };
+            return f -> {
+                long v = value.eval(f);
+                if (f.simulator().debugLevel > 0)
+                    System.out.println("temp[" + tempName + "]=" + v);
+                f.simulator().putGlobal(code, v);
+                return next;
+            };
+        }
+        if (stmt instanceof IRExp) {
+            final ExprCode expr = compileExpr(((IRExp) stmt).expr());
+            return f -> {
+                expr.eval(f);
+                return next;
+            };
+        }
+        if (stmt instanceof IRJump) {
+            IRExpr target = ((IRJump) stmt).target();
+            if (target instanceof IRName) {
+                final int index = labelIndex(((IRName) target).name());
+                return f -> index;
+            }
+            final ExprCode expr = compileExpr(target);
+            final String name = funcName;
+            return f -> {
+                long t = expr.eval(f);
+                long offset = t - baseIndex;
+                int index = offset < 0 || offset >= indexToStmt.length
+                        ? -1 : indexToStmt[(int) offset];
+                if (index < 0)
+                    throw new Trap("Invalid jump target " + t
+                            + " in function '" + name + "'!");
+                return index;
+            };
+        }
+        if (stmt instanceof IRCJump) {
+            IRCJump cjump = (IRCJump) stmt;
+            final ExprCode cond = compileExpr(cjump.expr());
+            final int t = labelIndex(cjump.trueLabel());
+            final int e = cjump.hasFalseLabel()
+                    ? labelIndex(cjump.falseLabel()) : next;
+            return f -> {
+                long c = cond.eval(f);
+                if (c == 1) return t;
+                if (c == 0) return e;
+                throw new InternalCompilerError("Invalid value in CJUMP - expected 0/1, got "
+                        + c);
+            };
+        }
+        if (stmt instanceof IRReturn) return f -> ClosureFunction.RETURN;
+        throw new InternalCompilerError("Cannot compile statement "
+                + stmt.label() + " in function " + funcName);
+    }
+
+    /**
+     * Compile straight-line code, as found in ESEQ.
+     */
+    private void compileStraightLine(IRStmt stmt, List<StmtCode> code) {
+        if (stmt instanceof IRSeq) {
+            for (IRStmt s : ((IRSeq) stmt).stmts())
+                compileStraightLine(s, code);
+        }
+        else code.add(compileStmt(stmt, 0, 0, null));
+    }
+
+    protected ExprCode compileExpr(IRExpr expr) {
+        if (expr instanceof IRConst) {
+            final long value = ((IRConst) expr).value();
+            return f -> value;
+        }
+        if (expr instanceof IRTemp) {
+            final String tempName = ((IRTemp) expr).name();
+            final int slot = layout.slotOf(tempName);
+            if (slot >= 0) return f -> f.get(slot);
+            final int code = layout.globalOf(tempName);
+            return f -> f.simulator().getGlobal(code);
+        }
+        if (expr instanceof IRBinOp) {
+            IRBinOp binOp = (IRBinOp) expr;
+            return compileBinOp(binOp.opType(),
+                                compileExpr(binOp.left()),
+                                compileExpr(binOp.right()));
+        }
+        if (expr instanceof IRMem) {
+            final ExprCode addr = compileExpr(((IRMem) expr).expr());
+            return f -> f.simulator().read(addr.eval(f));
+        }
+        if (expr instanceof IRCall) {
+            IRCall call = (IRCall) expr;
+            final ExprCode[] args = new ExprCode[call.args().size()];
+            IRExpr target = call.target();
+            if (target instanceof IRName) {
+                Integer function = functionIds.get(((IRName) target).name());
+                if (function != null) {
+                    final int id = function;
+                    for (int i = 0; i < args.length; i++)
+                        args[i] = compileExpr(call.args().get(i));
+                    return f -> {
+                        long[] values = new long[args.length];
+                        for (int i = 0; i < args.length; i++)
+                            values[i] = args[i].eval(f);
+                        return f.simulator().callById(id, values);
+                    };
+                }
+            }
+            final int site = insnToIndex.get(call).intValue();
+            final ExprCode targetCode = compileExpr(target);
+            for (int i = 0; i < args.length; i++)
+                args[i] = compileExpr(call.args().get(i));
+            return f -> {
+                long t = targetCode.eval(f);
+                long[] values = new long[args.length];
+                for (int i = 0; i < args.length; i++)
+                    values[i] = args[i].eval(f);
+                return f.simulator().callIndirect(site, t, values);
+            };
+        }
+        if (expr instanceof IRName) {
+            String name = ((IRName) expr).name();
+            if (libraryFunctions.contains(name)) return f -> -1;
+            if (nameToIndex.containsKey(name)) {
+                final long index = nameToIndex.get(name);
+                return f -> index;
+            }
+            final String message = "Could not find label '" + name + "'!";
+            return f -> {
+                throw new Trap(message);
+            };
+        }
+        if (expr instanceof IRESeq) {
+            List<StmtCode> code = new ArrayList<>();
+            compileStraightLine(((IRESeq) expr).stmt(), code);
+            final StmtCode[] stmts = code.toArray(new StmtCode[code.size()]);
+            final ExprCode value = compileExpr(((IRESeq) expr).expr());
+            return f -> {
+                for (StmtCode s : stmts)
+                    s.exec(f);
+                return value.eval(f);
+            };
+        }
+        throw new InternalCompilerError("Cannot compile expression "
+                + expr.label() + " in function " + funcName);
+    }
+
+    protected ExprCode compileBinOp(IRBinOp.OpType type, final ExprCode l,
+            final ExprCode r) {
+        switch (type) {
+        case ADD:
+            return f -> l.eval(f) + r.eval(f);
+        case SUB:
+            return f -> l.eval(f) - r.eval(f);
+        case MUL:
+            return f -> l.eval(f) * r.eval(f);
+        case HMUL:
+            return f -> BigInteger.valueOf(l.eval(f))
+                                  .multiply(BigInteger.valueOf(r.eval(f)))
+                                  .shiftRight(64)
+                                  .longValue();
+        case DIV:
+            return f -> {
+                long lv = l.eval(f);
+                long rv = r.eval(f);
+                if (rv == 0) throw new Trap("Division by zero!");
+                return lv / rv;
+            };
+        case MOD:
+            return f -> {
+                long lv = l.eval(f);
+                long rv = r.eval(f);
+                if (rv == 0) throw new Trap("Division by zero!");
+                return lv % rv;
+            };
+        case AND:
+            return f -> l.eval(f) & r.eval(f);
+        case OR:
+            return f -> l.eval(f) | r.eval(f);
+        case XOR:
+            return f -> l.eval(f) ^ r.eval(f);
+        case LSHIFT:
+            return f -> l.eval(f) << r.eval(f);
+        case RSHIFT:
+            return f -> l.eval(f) >>> r.eval(f);
+        case ARSHIFT:
+            return f -> l.eval(f) >> r.eval(f);
+        case EQ:
+            return f -> l.eval(f) == r.eval(f) ? 1 : 0;
+        case NEQ:
+            return f -> l.eval(f) != r.eval(f) ? 1 : 0;
+        case LT:
+            return f -> l.eval(f) < r.eval(f) ? 1 : 0;
+        case GT:
+            return f -> l.eval(f) > r.eval(f) ? 1 : 0;
+        case LEQ:
+            return f -> l.eval(f) <= r.eval(f) ? 1 : 0;
+        case GEQ:
+            return f -> l.eval(f) >= r.eval(f) ? 1 : 0;
+        default:
+            throw new InternalCompilerError("Invalid binary operation");
+        }
+    }
+
+    /**
+     *
+     * @param label a label name
+     * @return the index of the statement following {@code label}, or of a
+     *          statement that traps if the label is not in this function
+     */
+    private int labelIndex(String label) {
+        Integer index = labelIndices.get(label);
+        if (index != null) return index;
+        index = trapIndices.get(label);
+        if (index == null) {
+            index = trapBase + traps.size();
+            trapIndices.put(label, index);
+            traps.add(trap(nameToIndex.containsKey(label)
+                    ? "Jump to label '" + label + "' outside of function '"
+                            + funcName + "'!"
+                    : "Could not find label '" + label + "'!"));
+        }
+        return index;
+    }
+
+    private static StmtCode trap(final String message) {
+        return f -> {
+            throw new Trap(message);
+        };
+    }
+}
@@ -0,0 +1,70 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.ExecutionFrame;
+
+/**
+ * A function body compiled into a tree of pre-linked closures.
+ *
+ * The statements of the body are flattened into an array.  Executing a
+ * statement returns the index of the statement to be executed next, or
+ * {@link #RETURN} when the function returns.  Expressions evaluate directly
+ * to their value, so no expression stack is needed.
+ *
+ * Closures only capture the compiled program, never a simulator; all
+ * per-run state is reached through the execution frame.
+ *
+ * Instances are built by {@link ClosureCompiler}.
+ */
+public class ClosureFunction {
+    /** the value returned by a statement that leaves the function */
+    public static final int RETURN = -1;
+
+    /**
+     * A compiled expression
+     */
+    public interface ExprCode {
+        long eval(ExecutionFrame frame);
+    }
+
+    /**
+     * A compiled statement
+     */
+    public interface StmtCode {
+        /**
+         * Execute this statement
+         * @param frame the current execution frame
+         * @return the index of the next statement, or {@link #RETURN}
+         */
+        int exec(ExecutionFrame frame);
+    }
+
+    /** name of the function */
+    private final String name;
+
+    /** slot assignment of the local registers */
+    final FrameLayout layout;
+
+    /** the flattened statements of the body */
+    private final StmtCode[] stmts;
+
+    ClosureFunction(String name, FrameLayout layout, StmtCode[] stmts) {
+        this.name = name;
+        this.layout = layout;
+        this.stmts = stmts;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Run the function body to completion.
+     * @param frame the execution frame holding the local registers
+     */
+    public void run(ExecutionFrame frame) {
+        final StmtCode[] stmts = this.stmts;
+        int next = 0;
+        while (next != RETURN)
+            next = stmts[next].exec(frame);
+    }
+}
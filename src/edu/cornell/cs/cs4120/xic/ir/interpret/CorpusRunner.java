@@ -0,0 +1,389 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import edu.cornell.cs.cs4120.util.InternalCompilerError;
+import edu.cornell.cs.cs4120.xic.ir.IRCompUnit;
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.ExecutionMode;
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.ExecutionResult;
+import edu.cornell.cs.cs4120.xic.ir.parse.IRLexer;
+import edu.cornell.cs.cs4120.xic.ir.parse.IRParser;
+
+/**
+ * Runs a directory of IR programs in one process and checks their output.
+ *
+ * Every file {@code name.ir} in the directory holds a program as an
+ * S-expression.  The program's {@link #ENTRY} function is called with no
+ * arguments, with its input taken from {@code name.in}, if present, and
+ * its output compared with {@code name.expected}, if present.  Programs run
+ * concurrently, each in its own simulator on its own thread: a virtual
+ * thread where the JVM provides them, otherwise a thread of a pool with
+ * one thread per processor.
+ */
+public class CorpusRunner {
+    /** the function a program starts at: {@code main(args: int[][])} */
+    public static final String ENTRY = "_Imain_paai";
+
+    public static final String PROGRAM_SUFFIX = ".ir";
+    public static final String INPUT_SUFFIX = ".in";
+    public static final String EXPECTED_SUFFIX = ".expected";
+
+    /** default number of words of the heap of every program */
+    public static final int DEFAULT_HEAP_WORDS = 1 << 20;
+
+    private final ExecutionMode mode;
+    private final IntrinsicRegistry intrinsics;
+    private int heapWords;
+
+    /**
+     * @param mode how function bodies are executed
+     */
+    public CorpusRunner(ExecutionMode mode) {
+        this(mode, IntrinsicRegistry.standard());
+    }
+
+    /**
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator, which
+     *          may run on several threads at once
+     */
+    public CorpusRunner(ExecutionMode mode, IntrinsicRegistry intrinsics) {
+        this.mode = mode;
+        this.intrinsics = intrinsics;
+        heapWords = DEFAULT_HEAP_WORDS;
+    }
+
+    /**
+     * Set the size of the heap of every program.
+     * @param words the number of words
+     */
+    public void setHeapWords(int words) {
+        heapWords = words;
+    }
+
+    /**
+     * Run every program of a directory
+     * @param dir the directory
+     * @return the results
+     * @throws IOException if the directory cannot be listed
+     */
+    public Summary run(Path dir) throws IOException {
+        List<Path> programs = new ArrayList<>();
+        try (DirectoryStream<Path> ds =
+                Files.newDirectoryStream(dir, "*" + PROGRAM_SUFFIX)) {
+            for (Path p : ds)
+                programs.add(p);
+        }
+        Collections.sort(programs);
+
+        long start = System.nanoTime();
+        ExecutorService executor = newExecutor();
+        List<Result> results = new ArrayList<>();
+        try {
+            List<Future<Result>> futures = new ArrayList<>();
+            for (Path p : programs)
+                futures.add(executor.submit(() -> runProgram(p)));
+            for (int i = 0; i < futures.size(); i++)
+                results.add(result(programs.get(i), futures.get(i)));
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        return new Summary(results, System.nanoTime() - start);
+    }
+
+    /**
+     * Run a program, with its input and expected output taken from the
+     * files next to it
+     * @param program the program file
+     * @return the result
+     */
+    public Result runProgram(Path program) {
+        String name = program.getFileName().toString();
+        name = name.substring(0, name.length() - PROGRAM_SUFFIX.length());
+        long start = System.nanoTime();
+        String expected = null;
+        OutputSink.Memory output = OutputSink.memory();
+        try {
+            Path in = program.resolveSibling(name + INPUT_SUFFIX);
+            byte[] input = Files.exists(in) ? Files.readAllBytes(in)
+                    : new byte[0];
+            Path exp = program.resolveSibling(name + EXPECTED_SUFFIX);
+            if (Files.exists(exp))
+                expected = new String(Files.readAllBytes(exp),
+                                      StandardCharsets.UTF_8);
+            IRCompUnit compUnit = parse(program);
+
+            IRSimulator sim = new IRSimulator(compUnit,
+                                              new ArrayHeap(heapWords),
+                                              mode,
+                                              intrinsics);
+            sim.setInput(InputSource.of(input));
+            sim.setOutput(output);
+            // An empty array of arguments
+            long args = sim.malloc(Configuration.WORD_SIZE);
+            sim.store(args, 0);
+            ExecutionResult result =
+                    sim.tryCall(ENTRY, args + Configuration.WORD_SIZE);
+
+            String actual = output.contents();
+            Status status;
+            if (!result.finished())
+                status = Status.TRAPPED;
+            else if (expected == null
+                    || normalize(expected).equals(normalize(actual)))
+                status = Status.PASSED;
+            else status = Status.FAILED;
+            return new Result(name, status, actual, expected, result.reason(),
+                              System.nanoTime() - start);
+        }
+        catch (IOException | RuntimeException e) {
+            return new Result(name, Status.ERROR, contents(output), expected,
+                              e.toString(), System.nanoTime() - start);
+        }
+    }
+
+    private static Result result(Path program, Future<Result> future) {
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalCompilerError("Interrupted while running "
+                    + program);
+        }
+        catch (ExecutionException e) {
+            // Errors escaping the simulator, e.g., running out of memory
+            throw new InternalCompilerError("Failed to run " + program + ": "
+                    + e.getCause());
+        }
+    }
+
+    /**
+     *
+     * @return an executor running every task on a virtual thread of its
+     *          own, if the JVM supports them, or else on a pool with a
+     *          thread per processor
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            Object executor =
+                    Executors.class.getMethod("newVirtualThreadPerTaskExecutor")
+                                   .invoke(null);
+            return (ExecutorService) executor;
+        }
+        catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime()
+                                                       .availableProcessors());
+        }
+    }
+
+    private static IRCompUnit parse(Path program) throws IOException {
+        String text =
+                new String(Files.readAllBytes(program), StandardCharsets.UTF_8);
+        try (Reader r = new StringReader(text)) {
+            IRParser parser = new IRParser(new IRLexer(r));
+            return parser.parse().<IRCompUnit> value();
+        }
+        catch (RuntimeException | IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // Used by CUP to indicate an unrecoverable error.
+            throw new IOException("Syntax error: " + e.getMessage(), e);
+        }
+    }
+
+    private static String contents(OutputSink.Memory output) {
+        try {
+            return output.contents();
+        }
+        catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static String normalize(String s) {
+        return s.replace("\r\n", "\n");
+    }
+
+    /**
+     * Outcomes of a run
+     */
+    public enum Status {
+        /** the output was as expected, or nothing was expected */
+        PASSED,
+        /** the output was not as expected */
+        FAILED,
+        /** the program trapped */
+        TRAPPED,
+        /** the program could not be read or parsed, or is invalid IR */
+        ERROR;
+    }
+
+    /**
+     * The result of running a program
+     */
+    public static class Result {
+        private final String name;
+        private final Status status;
+        private final String output;
+        private final String expected;
+        private final String message;
+        private final long nanos;
+
+        Result(String name, Status status, String output, String expected,
+                String message, long nanos) {
+            this.name = name;
+            this.status = status;
+            this.output = output;
+            this.expected = expected;
+            this.message = message;
+            this.nanos = nanos;
+        }
+
+        /**
+         *
+         * @return the name of the program file, without the suffix
+         */
+        public String name() {
+            return name;
+        }
+
+        public Status status() {
+            return status;
+        }
+
+        /**
+         *
+         * @return the output written by the program
+         */
+        public String output() {
+            return output;
+        }
+
+        /**
+         *
+         * @return the expected output, or null if there is none
+         */
+        public String expected() {
+            return expected;
+        }
+
+        /**
+         *
+         * @return the reason of a trap or error, or null
+         */
+        public String message() {
+            return message;
+        }
+
+        /**
+         *
+         * @return the time taken by the run, in nanoseconds
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + status
+                    + (message == null ? "" : " (" + message + ")");
+        }
+    }
+
+    /**
+     * The results of running a directory of programs
+     */
+    public static class Summary {
+        private final List<Result> results;
+        private final long nanos;
+
+        Summary(List<Result> results, long nanos) {
+            this.results = Collections.unmodifiableList(results);
+            this.nanos = nanos;
+        }
+
+        /**
+         *
+         * @return the results, in order of program name
+         */
+        public List<Result> results() {
+            return results;
+        }
+
+        /**
+         *
+         * @return the number of programs with the given outcome
+         */
+        public int count(Status status) {
+            int n = 0;
+            for (Result r : results)
+                if (r.status == status) n++;
+            return n;
+        }
+
+        /**
+         *
+         * @return whether every program passed
+         */
+        public boolean passed() {
+            return count(Status.PASSED) == results.size();
+        }
+
+        /**
+         *
+         * @return the time taken by the whole corpus, in nanoseconds
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Result r : results)
+                if (r.status != Status.PASSED)
+                    sb.append(r).append(System.lineSeparator());
+            sb.append(results.size()).append(" programs: ");
+            for (Status s : Status.values())
+                sb.append(count(s))
+                  .append(' ')
+                  .append(s.name().toLowerCase())
+                  .append(", ");
+            sb.append(nanos / 1000000).append(" ms");
+            return sb.toString();
+        }
+    }
+
+    /**
+     * Run the programs of a directory and print a summary.
+     * Usage: {@code CorpusRunner <directory> [mode]}
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: CorpusRunner <directory> [TREE|BYTECODE|CLOSURE|JIT|TIERED]");
+            System.exit(2);
+        }
+        ExecutionMode mode = args.length > 1 ? ExecutionMode.valueOf(args[1])
+                : ExecutionMode.TREE;
+        Summary summary = new CorpusRunner(mode).run(Paths.get(args[0]));
+        System.out.println(summary);
+        System.exit(summary.passed() ? 0 : 1);
+    }
+}
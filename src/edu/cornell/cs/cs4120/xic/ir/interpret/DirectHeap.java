@@ -0,0 +1,94 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.Random;
+
+/**
+ * A heap in native memory outside the Java heap.
+ *
+ * The heap is split into chunks of {@link #CHUNK_WORDS} words, each held by
+ * a direct buffer, so it can be addressed with 64-bit indices and grow past
+ * the 2 GB limit of a single buffer.  A chunk is only allocated (and filled
+ * with garbage) when one of its words is first accessed, so a large heap
+ * costs nothing until the program uses it.  The contents of the heap are
+ * not scanned by the Java garbage collector.
+ */
+public class DirectHeap implements Heap {
+    private static final int CHUNK_SHIFT = 20;
+
+    /** number of words per chunk */
+    public static final int CHUNK_WORDS = 1 << CHUNK_SHIFT;
+
+    private static final long CHUNK_MASK = CHUNK_WORDS - 1;
+
+    private final long size;
+    private final LongBuffer[] chunks;
+    private final long seed;
+
+    /**
+     * @param words the number of words in the heap
+     */
+    public DirectHeap(long words) {
+        this(words, new Random().nextLong());
+    }
+
+    /**
+     * @param words the number of words in the heap
+     * @param seed the seed of the garbage the heap is initialized with
+     */
+    public DirectHeap(long words, long seed) {
+        long count = (words + CHUNK_WORDS - 1) >>> CHUNK_SHIFT;
+        if (words < 0 || count > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid heap size: " + words);
+        size = words;
+        chunks = new LongBuffer[(int) count];
+        this.seed = seed;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long seed() {
+        return seed;
+    }
+
+    @Override
+    public boolean isTouched(long from, long to) {
+        for (long i = from >>> CHUNK_SHIFT; i << CHUNK_SHIFT < to; i++)
+            if (chunks[(int) i] != null) return true;
+        return false;
+    }
+
+    @Override
+    public long read(long index) {
+        return chunk(index).get((int) (index & CHUNK_MASK));
+    }
+
+    @Override
+    public void store(long index, long value) {
+        chunk(index).put((int) (index & CHUNK_MASK), value);
+    }
+
+    private LongBuffer chunk(long index) {
+        int i = (int) (index >>> CHUNK_SHIFT);
+        LongBuffer chunk = chunks[i];
+        if (chunk == null) {
+            // The last chunk only covers the end of the heap.
+            long base = (long) i << CHUNK_SHIFT;
+            int words = (int) Math.min(CHUNK_WORDS, size - base);
+            chunk = ByteBuffer.allocateDirect(words * Configuration.WORD_SIZE)
+                              .order(ByteOrder.nativeOrder())
+                              .asLongBuffer();
+            // initialize chunk to garbage
+            for (int j = 0; j < words; j++)
+                chunk.put(j, Garbage.word(seed, base + j));
+            chunks[i] = chunk;
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,462 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.cornell.cs.cs4120.xic.ir.IRCJump;
+import edu.cornell.cs.cs4120.xic.ir.IRFuncDecl;
+import edu.cornell.cs.cs4120.xic.ir.IRLabel;
+import edu.cornell.cs.cs4120.xic.ir.IRNode;
+import edu.cornell.cs.cs4120.xic.ir.IRSeq;
+import edu.cornell.cs.cs4120.xic.ir.IRStmt;
+
+/**
+ * Counts the steps a simulator takes, per IR node, per function and per call
+ * path (see {@link IRSimulator#setProfiler(ExecutionProfiler)}).
+ *
+ * A step is an IR node visited by the tree interpreter, in which all
+ * functions run while a profiler is set.  Steps are attributed to the call
+ * path of the running function; intrinsics run within the step that calls
+ * them and do not appear on call paths.
+ *
+ * The counts can be exported as collapsed stacks, the input format of
+ * flame graph tools, and ranked as hot spots: separately, the straight-line
+ * regions that follow labels, which are the heads of loops in lowered IR,
+ * and the conditional jumps that end them.
+ */
+public class ExecutionProfiler {
+    /** the program profiled, once attached to a simulator */
+    private PreparedProgram program;
+
+    /** steps by address of the IR node visited */
+    private long[] nodeSteps;
+
+    private final CallPath root;
+
+    /** the call path of the running function */
+    private CallPath current;
+
+    public ExecutionProfiler() {
+        root = new CallPath(null, null);
+        current = root;
+    }
+
+    /**
+     * Bind the profiler to the program of a simulator
+     * @param program the program
+     */
+    void attach(PreparedProgram program) {
+        if (this.program == program) return;
+        if (this.program != null)
+            throw new IllegalStateException("The profiler is attached to "
+                    + "another program");
+        this.program = program;
+        nodeSteps = new long[program.indexToInsn.size()];
+    }
+
+    void step(long index) {
+        nodeSteps[(int) index]++;
+        current.steps++;
+    }
+
+    void enter(FunctionHandle f) {
+        current = current.child(f.name);
+        current.calls++;
+    }
+
+    void exit() {
+        if (current != root) current = current.parent;
+    }
+
+    /**
+     * Discard the counts so far
+     */
+    public void reset() {
+        if (nodeSteps != null) nodeSteps = new long[nodeSteps.length];
+        root.children.clear();
+        root.steps = 0;
+        current = root;
+    }
+
+    /**
+     *
+     * @return the number of steps counted
+     */
+    public long steps() {
+        return root.totalSteps();
+    }
+
+    /**
+     *
+     * @param node a node of the profiled program, e.g., of a hot spot
+     * @return the number of times the node was visited
+     */
+    public long steps(IRNode node) {
+        if (program == null) return 0;
+        Long index = program.insnToIndex.get(node);
+        return index == null ? 0 : nodeSteps[index.intValue()];
+    }
+
+    /**
+     *
+     * @return the profiles of the functions that were called, by
+     *          decreasing number of steps taken in the function itself
+     */
+    public List<FunctionProfile> functions() {
+        Map<String, FunctionProfile> profiles = new LinkedHashMap<>();
+        root.collect(profiles, new ArrayList<>());
+        List<FunctionProfile> result = new ArrayList<>(profiles.values());
+        Collections.sort(result,
+                         (a, b) -> Long.compare(b.selfSteps, a.selfSteps));
+        return result;
+    }
+
+    /**
+     * Write the steps of every call path as collapsed stacks: one line per
+     * path, the names of its functions from the outermost one separated by
+     * semicolons, followed by a space and the number of steps taken in the
+     * innermost function
+     * @param out the destination
+     * @throws IOException if writing fails
+     */
+    public void writeCollapsedStacks(Appendable out) throws IOException {
+        for (CallPath child : root.children.values())
+            child.writeCollapsed(out, new StringBuilder());
+    }
+
+    /**
+     *
+     * @return the collapsed stacks, see
+     *          {@link #writeCollapsedStacks(Appendable)}
+     */
+    public String collapsedStacks() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeCollapsedStacks(sb);
+        }
+        catch (IOException e) {
+            // StringBuilder does not throw.
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Rank the regions of the profiled functions.  A region starts at the
+     * entry of a function or at a label and extends to the next label; its
+     * steps are those of its statements, so regions do not overlap.
+     * @return the regions with any steps, by decreasing number of steps
+     */
+    public List<HotSpot> regions() {
+        return hotSpots(false);
+    }
+
+    /**
+     * Rank the conditional jumps of the profiled functions.  The steps of a
+     * jump are those of evaluating its condition, which are part of the
+     * steps of its region as well.
+     * @return the jumps with any steps, by decreasing number of steps
+     */
+    public List<HotSpot> jumps() {
+        return hotSpots(true);
+    }
+
+    /**
+     * @param jumps whether to rank the conditional jumps rather than the
+     *          regions
+     */
+    private List<HotSpot> hotSpots(boolean jumps) {
+        List<HotSpot> spots = new ArrayList<>();
+        if (program == null) return spots;
+        Map<String, Long> calls = new HashMap<>();
+        for (FunctionProfile p : functions())
+            calls.put(p.name, p.calls);
+        for (FunctionHandle f : program.functions) {
+            if (f.isLibrary()) continue;
+            List<IRStmt> stmts = new ArrayList<>();
+            flatten(f.fDecl.body(), stmts);
+            // Calls of the function enter its first region.
+            Long entries = calls.get(f.name);
+            HotSpot region = new HotSpot(f.name,
+                                         f.fDecl,
+                                         entries == null ? 0 : entries);
+            // A call takes a step at the declaration before the body.
+            region.steps = steps(f.fDecl);
+            if (!jumps) spots.add(region);
+            for (IRStmt s : stmts) {
+                if (s instanceof IRLabel) {
+                    region = new HotSpot(f.name, s, steps(s));
+                    if (!jumps) spots.add(region);
+                }
+                long steps = subtreeSteps(s);
+                region.steps += steps;
+                if (jumps && s instanceof IRCJump) {
+                    HotSpot jump = new HotSpot(f.name, s, steps(s));
+                    jump.steps = steps;
+                    spots.add(jump);
+                }
+            }
+        }
+        spots.removeIf(spot -> spot.steps == 0);
+        Collections.sort(spots, (a, b) -> Long.compare(b.steps, a.steps));
+        return spots;
+    }
+
+    /**
+     * Format the profiles of the functions, and the hottest regions and
+     * conditional jumps, each with its share of all steps
+     * @param limit the largest number of lines in each section
+     * @return the report
+     */
+    public String report(int limit) {
+        long total = Math.max(1, steps());
+        StringBuilder sb = new StringBuilder();
+        String nl = System.lineSeparator();
+        sb.append(steps()).append(" steps").append(nl);
+        sb.append(nl).append("   self%        self       total       calls  function")
+          .append(nl);
+        int n = 0;
+        for (FunctionProfile p : functions()) {
+            if (n++ == limit) break;
+            sb.append(String.format("%7.2f%% %11d %11d %11d  %s",
+                                    100.0 * p.selfSteps / total,
+                                    p.selfSteps,
+                                    p.totalSteps,
+                                    p.calls,
+                                    p.name))
+              .append(nl);
+        }
+        appendSpots(sb, "region", regions(), total, limit);
+        appendSpots(sb, "jump", jumps(), total, limit);
+        return sb.toString();
+    }
+
+    private static void appendSpots(StringBuilder sb, String title,
+            List<HotSpot> spots, long total, int limit) {
+        String nl = System.lineSeparator();
+        sb.append(nl)
+          .append("  steps%       steps  executions  ")
+          .append(title)
+          .append(nl);
+        int n = 0;
+        for (HotSpot spot : spots) {
+            if (n++ == limit) break;
+            sb.append(String.format("%7.2f%% %11d %11d  %s",
+                                    100.0 * spot.steps / total,
+                                    spot.steps,
+                                    spot.executions,
+                                    spot.location()))
+              .append(nl);
+        }
+    }
+
+    private static void flatten(IRStmt s, List<IRStmt> stmts) {
+        if (s instanceof IRSeq) {
+            for (IRStmt child : ((IRSeq) s).stmts())
+                flatten(child, stmts);
+        }
+        else stmts.add(s);
+    }
+
+    private long subtreeSteps(IRNode n) {
+        long steps = steps(n);
+        for (IRNode child : n.children)
+            steps += subtreeSteps(child);
+        return steps;
+    }
+
+    /**
+     * A node of the tree of call paths
+     */
+    private static class CallPath {
+        final String function;
+        final CallPath parent;
+        final Map<String, CallPath> children;
+        long calls;
+        /** steps taken in the function itself on this path */
+        long steps;
+
+        CallPath(String function, CallPath parent) {
+            this.function = function;
+            this.parent = parent;
+            children = new LinkedHashMap<>();
+        }
+
+        CallPath child(String function) {
+            CallPath child = children.get(function);
+            if (child == null) {
+                child = new CallPath(function, this);
+                children.put(function, child);
+            }
+            return child;
+        }
+
+        long totalSteps() {
+            long total = steps;
+            for (CallPath child : children.values())
+                total += child.totalSteps();
+            return total;
+        }
+
+        /**
+         * Add the counts of this path and the paths below it to the
+         * profiles of their functions
+         * @param active the functions of the path above this one
+         */
+        void collect(Map<String, FunctionProfile> profiles,
+                List<String> active) {
+            if (function != null) {
+                FunctionProfile p = profiles.get(function);
+                if (p == null) {
+                    p = new FunctionProfile(function);
+                    profiles.put(function, p);
+                }
+                p.calls += calls;
+                p.selfSteps += steps;
+                // Count recursive calls within the outermost one only.
+                if (!active.contains(function)) p.totalSteps += totalSteps();
+                active.add(function);
+            }
+            for (CallPath child : children.values())
+                child.collect(profiles, active);
+            if (function != null) active.remove(active.size() - 1);
+        }
+
+        void writeCollapsed(Appendable out, StringBuilder stack)
+                throws IOException {
+            int length = stack.length();
+            if (length > 0) stack.append(';');
+            stack.append(function);
+            if (steps > 0)
+                out.append(stack)
+                   .append(' ')
+                   .append(Long.toString(steps))
+                   .append('\n');
+            for (CallPath child : children.values())
+                child.writeCollapsed(out, stack);
+            stack.setLength(length);
+        }
+    }
+
+    /**
+     * The counts of a function, over all call paths
+     */
+    public static class FunctionProfile {
+        private final String name;
+        private long calls;
+        private long selfSteps;
+        private long totalSteps;
+
+        FunctionProfile(String name) {
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        /**
+         *
+         * @return the number of times the function was called
+         */
+        public long calls() {
+            return calls;
+        }
+
+        /**
+         *
+         * @return the number of steps taken in the function itself
+         */
+        public long selfSteps() {
+            return selfSteps;
+        }
+
+        /**
+         *
+         * @return the number of steps taken in the function and the
+         *          functions it called
+         */
+        public long totalSteps() {
+            return totalSteps;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + selfSteps + " steps (" + totalSteps
+                    + " total, " + calls + " calls)";
+        }
+    }
+
+    /**
+     * A region starting at a label or function entry, or a conditional jump
+     */
+    public static class HotSpot {
+        private final String function;
+        private final IRNode node;
+        private final long executions;
+        private long steps;
+
+        HotSpot(String function, IRNode node, long executions) {
+            this.function = function;
+            this.node = node;
+            this.executions = executions;
+        }
+
+        public String function() {
+            return function;
+        }
+
+        /**
+         *
+         * @return the {@link IRLabel} or {@link IRCJump}, or the
+         *          {@link IRFuncDecl} for the region at the function entry
+         */
+        public IRNode node() {
+            return node;
+        }
+
+        /**
+         *
+         * @return the number of times the region was entered or the jump
+         *          executed
+         */
+        public long executions() {
+            return executions;
+        }
+
+        /**
+         *
+         * @return the number of steps taken in the region or in evaluating
+         *          the condition of the jump
+         */
+        public long steps() {
+            return steps;
+        }
+
+        /**
+         *
+         * @return a human-readable description of the location
+         */
+        public String location() {
+            if (node instanceof IRLabel)
+                return function + ": LABEL " + ((IRLabel) node).name();
+            if (node instanceof IRCJump) {
+                IRCJump jump = (IRCJump) node;
+                return function + ": CJUMP " + jump.trueLabel()
+                        + (jump.hasFalseLabel() ? " " + jump.falseLabel()
+                                : "");
+            }
+            return function + ": entry";
+        }
+
+        @Override
+        public String toString() {
+            return location() + ": " + steps + " steps (" + executions
+                    + " executions)";
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Assignment of the local registers of a function to dense slot numbers.
+ *
+ * Slots are assigned once, when the function is prepared; execution frames
+ * then hold register values in an array indexed by slot.  Registers that are
+ * shared across calls do not get slots; the layout records their
+ * {@link GlobalRegisters} codes instead.
+ */
+public class FrameLayout {
+    /** name of the function */
+    private final String name;
+
+    /** map from register name to slot */
+    private final Map<String, Integer> slots;
+
+    /** map from slot to register name */
+    private final List<String> names;
+
+    /** map from global register name to register code */
+    private final Map<String, Integer> globals;
+
+    /** map from register code to global register name */
+    private final Map<Integer, String> globalNames;
+
+    public FrameLayout(String name) {
+        this.name = name;
+        slots = new HashMap<>();
+        names = new ArrayList<>();
+        globals = new HashMap<>();
+        globalNames = new HashMap<>();
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Assign a slot to a register, unless it already has one
+     * @param tempName name of the register
+     * @return the slot of the register
+     */
+    public int addTemp(String tempName) {
+        Integer slot = slots.get(tempName);
+        if (slot == null) {
+            slot = names.size();
+            slots.put(tempName, slot);
+            names.add(tempName);
+        }
+        return slot;
+    }
+
+    /**
+     *
+     * @param tempName name of the register
+     * @return the slot of the register, or -1 if it has none
+     */
+    public int slotOf(String tempName) {
+        Integer slot = slots.get(tempName);
+        return slot == null ? -1 : slot;
+    }
+
+    /**
+     *
+     * @param slot a slot number
+     * @return the name of the register at {@code slot}
+     */
+    public String tempAt(int slot) {
+        return names.get(slot);
+    }
+
+    /**
+     * Record a global register referred to by the function
+     * @param tempName name of the register
+     * @param code the code of the register
+     */
+    public void addGlobal(String tempName, int code) {
+        globals.put(tempName, code);
+        globalNames.put(code, tempName);
+    }
+
+    /**
+     *
+     * @param tempName name of a global register
+     * @return the code of the register, or -1 if the function does not
+     *          refer to it
+     */
+    public int globalOf(String tempName) {
+        Integer code = globals.get(tempName);
+        return code == null ? -1 : code;
+    }
+
+    /**
+     *
+     * @param code the code of a global register
+     * @return the name of the register
+     */
+    public String globalAt(int code) {
+        return globalNames.get(code);
+    }
+
+    /**
+     *
+     * @return the number of slots
+     */
+    public int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,175 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.Trap;
+
+/**
+ * An allocator with segregated free lists, for programs that free memory
+ * explicitly (see {@link IRSimulator#free(long)}).
+ *
+ * Every request is rounded up to a size class: one class per word count up
+ * to {@link #SMALL_WORDS} words, and one per power of two above.  Freed
+ * blocks go on the free list of their class, and requests of the same class
+ * take the most recently freed block before carving a new one off the top
+ * of the heap.  Blocks are never split or merged.
+ */
+public class FreeListAllocator implements Allocator {
+    /** largest number of words that has a size class of its own */
+    public static final int SMALL_WORDS = 64;
+
+    private static final int SMALL_SHIFT = 6;
+
+    /** number of size classes (the largest holds 2^62 words) */
+    private static final int CLASSES = SMALL_WORDS + 63 - SMALL_SHIFT;
+
+    /** free blocks of each class, as stacks of start addresses */
+    private final long[][] lists;
+    private final int[] counts;
+
+    /** map from start address of an allocated block to its size class */
+    private final Map<Long, Integer> classes;
+
+    /** heap pointer to lowest unallocated region */
+    private long top;
+
+    /* statistics */
+    private long allocations;
+    private long reuses;
+    private long frees;
+    private long bytesInUse;
+    private long peakBytesInUse;
+
+    public FreeListAllocator() {
+        lists = new long[CLASSES + 1][];
+        counts = new int[CLASSES + 1];
+        classes = new HashMap<>();
+    }
+
+    @Override
+    public long allocate(IRSimulator sim, long size) {
+        long words = Math.max(1, size / Configuration.WORD_SIZE);
+        int sizeClass = sizeClass(words);
+        long blockSize = classWords(sizeClass) * Configuration.WORD_SIZE;
+        long addr;
+        if (counts[sizeClass] > 0) {
+            addr = lists[sizeClass][--counts[sizeClass]];
+            reuses++;
+        }
+        else {
+            long limit = sim.heap().size() * Configuration.WORD_SIZE;
+            if (blockSize > limit - top)
+                throw new Trap("Out of memory: cannot allocate " + size
+                        + " bytes");
+            addr = top;
+            top += blockSize;
+        }
+        classes.put(addr, sizeClass);
+        allocations++;
+        bytesInUse += blockSize;
+        peakBytesInUse = Math.max(peakBytesInUse, bytesInUse);
+        return addr;
+    }
+
+    @Override
+    public void free(IRSimulator sim, long addr) {
+        Integer sizeClass = classes.remove(addr);
+        if (sizeClass == null)
+            throw new Trap("Invalid free: " + addr
+                    + " is not the start of an allocated block");
+        long[] list = lists[sizeClass];
+        int count = counts[sizeClass];
+        if (list == null)
+            list = lists[sizeClass] = new long[16];
+        else if (count == list.length) {
+            long[] grown = new long[count * 2];
+            System.arraycopy(list, 0, grown, 0, count);
+            list = lists[sizeClass] = grown;
+        }
+        list[count] = addr;
+        counts[sizeClass] = count + 1;
+        frees++;
+        bytesInUse -= classWords(sizeClass) * Configuration.WORD_SIZE;
+    }
+
+    @Override
+    public long top() {
+        return top;
+    }
+
+    @Override
+    public boolean needsRoots() {
+        return false;
+    }
+
+    /**
+     *
+     * @param words a positive number of words
+     * @return the smallest size class that holds {@code words} words
+     */
+    private static int sizeClass(long words) {
+        if (words <= SMALL_WORDS) return (int) words;
+        // ceil(log2(words)) is at least SMALL_SHIFT + 1.
+        return SMALL_WORDS + 64 - Long.numberOfLeadingZeros(words - 1)
+                - SMALL_SHIFT;
+    }
+
+    /**
+     *
+     * @param sizeClass a size class
+     * @return the number of words of blocks of the class
+     */
+    private static long classWords(int sizeClass) {
+        if (sizeClass <= SMALL_WORDS) return sizeClass;
+        return 1L << (sizeClass - SMALL_WORDS + SMALL_SHIFT);
+    }
+
+    /**
+     *
+     * @return the number of blocks allocated so far
+     */
+    public long allocations() {
+        return allocations;
+    }
+
+    /**
+     *
+     * @return the number of allocations served from a free list
+     */
+    public long reuses() {
+        return reuses;
+    }
+
+    /**
+     *
+     * @return the number of blocks freed so far
+     */
+    public long frees() {
+        return frees;
+    }
+
+    /**
+     *
+     * @return the number of bytes in blocks allocated and not freed,
+     *          including the rounding to size classes
+     */
+    public long bytesInUse() {
+        return bytesInUse;
+    }
+
+    /**
+     *
+     * @return the largest value of {@link #bytesInUse()} so far
+     */
+    public long peakBytesInUse() {
+        return peakBytesInUse;
+    }
+
+    @Override
+    public String toString() {
+        return allocations + " allocations (" + reuses + " reused), " + frees
+                + " frees, " + bytesInUse + " bytes in use (peak "
+                + peakBytesInUse + "), heap top " + top;
+    }
+}
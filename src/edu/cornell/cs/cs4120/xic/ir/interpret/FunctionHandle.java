@@ -0,0 +1,83 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import edu.cornell.cs.cs4120.xic.ir.IRFuncDecl;
+
+/**
+ * A function resolved once when the program is prepared.
+ *
+ * Call sites refer to functions by id, so calling a function does not look
+ * up its name.  The handle also holds the compiled forms of the function,
+ * which change as the function is promoted in tiered mode.  Handles are
+ * shared by the simulators of a {@link PreparedProgram}, except in tiered
+ * mode, where every simulator promotes its own copies.
+ */
+public class FunctionHandle {
+    /** name of the function */
+    final String name;
+
+    /** index of this handle in the program's function table */
+    final int id;
+
+    /** the function, or null for library functions */
+    final IRFuncDecl fDecl;
+
+    /** the implementation of a library function, or null */
+    final Intrinsic intrinsic;
+
+    /** slot assignment of the local registers, or null for library functions */
+    final FrameLayout layout;
+
+    /* compiled forms, tried in this order before the tree interpreter */
+    JitFunction jit;
+    ClosureFunction closure;
+    BytecodeFunction bytecode;
+
+    /** counters of the function, in tiered mode */
+    TierProfile profile;
+
+    FunctionHandle(String name, int id, IRFuncDecl fDecl, FrameLayout layout) {
+        this.name = name;
+        this.id = id;
+        this.fDecl = fDecl;
+        this.layout = layout;
+        intrinsic = null;
+    }
+
+    /**
+     * Create a handle for the same function with no compiled forms, for a
+     * simulator that compiles or promotes functions on its own
+     * @param f the handle to be copied
+     */
+    FunctionHandle(FunctionHandle f) {
+        name = f.name;
+        id = f.id;
+        fDecl = f.fDecl;
+        intrinsic = f.intrinsic;
+        layout = f.layout;
+    }
+
+    FunctionHandle(String name, int id, Intrinsic intrinsic) {
+        this.name = name;
+        this.id = id;
+        this.intrinsic = intrinsic;
+        fDecl = null;
+        layout = null;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int id() {
+        return id;
+    }
+
+    public boolean isLibrary() {
+        return intrinsic != null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
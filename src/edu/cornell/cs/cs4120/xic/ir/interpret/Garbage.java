@@ -0,0 +1,40 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * The garbage that uninitialized heap words hold.
+ *
+ * The value of a word depends only on a seed and the index of the word
+ * (it is the SplitMix64 generator evaluated at that index), so heaps can
+ * fill pages in whatever order they are first touched, and runs with the
+ * same seed see the same garbage.
+ */
+final class Garbage {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private Garbage() {
+    }
+
+    /**
+     *
+     * @param seed the seed of the heap
+     * @param index the index of a word in the heap
+     * @return the initial value of the word
+     */
+    static long word(long seed, long index) {
+        long z = seed + (index + 1) * GOLDEN_GAMMA;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Fill a page with garbage
+     * @param seed the seed of the heap
+     * @param page the page
+     * @param base the index of the first word of the page in the heap
+     */
+    static void fill(long seed, long[] page, long base) {
+        for (int i = 0; i < page.length; i++)
+            page[i] = word(seed, base + i);
+    }
+}
@@ -0,0 +1,342 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.LongConsumer;
+
+/**
+ * The registers shared across function calls.
+ *
+ * Argument registers ({@link Configuration#ABSTRACT_ARG_PREFIX} followed by
+ * a number) and return registers ({@link Configuration#ABSTRACT_RET_PREFIX}
+ * followed by a number) are kept in two banks indexed by that number, if it
+ * is below {@link #MAX_BANK_INDEX}.  Any other name with one of those
+ * prefixes goes to a third bank, in order of first use.
+ *
+ * Registers are identified by codes, which are assigned when the program is
+ * loaded: the bank is in the low two bits, the index in the bank above.  As
+ * with local registers, reading a register that has not been written yields
+ * garbage.
+ */
+public class GlobalRegisters {
+    /* banks */
+    static final int ARG = 0;
+    static final int RET = 1;
+    static final int OTHER = 2;
+
+    /**
+     * bound on the numbers of registers kept in the argument and return
+     * banks, which keeps the banks small and the codes positive
+     */
+    static final int MAX_BANK_INDEX = 1 << 16;
+
+    private final Random r;
+
+    private final Bank args;
+    private final Bank rets;
+    private final Bank others;
+
+    /** map from register name to code, for names seen so far */
+    private final Map<String, Integer> codes;
+
+    /** names of the registers in the third bank */
+    private final List<String> otherNames;
+
+    /**
+     * @param r the source of garbage for registers read before written
+     */
+    public GlobalRegisters(Random r) {
+        this.r = r;
+        args = new Bank();
+        rets = new Bank();
+        others = new Bank();
+        codes = new HashMap<>();
+        otherNames = new ArrayList<>();
+    }
+
+    /**
+     * Create registers with the codes assigned so far by another set, e.g.,
+     * the one used to prepare a program, and none written
+     * @param r the source of garbage for registers read before written
+     * @param names the registers whose codes are to be reused
+     */
+    public GlobalRegisters(Random r, GlobalRegisters names) {
+        this(r);
+        codes.putAll(names.codes);
+        otherNames.addAll(names.otherNames);
+    }
+
+    /**
+     *
+     * @return whether {@code name} is the name of a register shared across
+     *          calls
+     */
+    public static boolean isGlobal(String name) {
+        return name.startsWith(Configuration.ABSTRACT_ARG_PREFIX)
+                || name.startsWith(Configuration.ABSTRACT_RET_PREFIX);
+    }
+
+    public static int argCode(int index) {
+        return index << 2 | ARG;
+    }
+
+    public static int retCode(int index) {
+        return index << 2 | RET;
+    }
+
+    /**
+     *
+     * @param name the name of a global register
+     * @return the code of the register
+     */
+    public int codeOf(String name) {
+        Integer code = codes.get(name);
+        if (code == null) {
+            int bank = OTHER;
+            int index = -1;
+            if (name.startsWith(Configuration.ABSTRACT_ARG_PREFIX)) {
+                bank = ARG;
+                index = number(name, Configuration.ABSTRACT_ARG_PREFIX.length());
+            }
+            else if (name.startsWith(Configuration.ABSTRACT_RET_PREFIX)) {
+                bank = RET;
+                index = number(name, Configuration.ABSTRACT_RET_PREFIX.length());
+            }
+            if (index < 0) {
+                bank = OTHER;
+                index = otherNames.size();
+                otherNames.add(name);
+            }
+            code = index << 2 | bank;
+            codes.put(name, code);
+        }
+        return code;
+    }
+
+    /**
+     *
+     * @return the register number following the prefix of {@code name}, or
+     *          -1 if the rest of {@code name} is not a canonical number below
+     *          {@link #MAX_BANK_INDEX}
+     */
+    private static int number(String name, int start) {
+        int len = name.length();
+        if (start == len || len - start > 9) return -1;
+        if (name.charAt(start) == '0' && len - start > 1) return -1;
+        int n = 0;
+        for (int i = start; i < len; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') return -1;
+            n = n * 10 + (c - '0');
+        }
+        return n < MAX_BANK_INDEX ? n : -1;
+    }
+
+    /**
+     *
+     * @param code the code of a register
+     * @return the name of the register
+     */
+    public String nameOf(int code) {
+        int index = code >>> 2;
+        switch (code & 3) {
+        case ARG:
+            return Configuration.ABSTRACT_ARG_PREFIX + index;
+        case RET:
+            return Configuration.ABSTRACT_RET_PREFIX + index;
+        default:
+            return otherNames.get(index);
+        }
+    }
+
+    /**
+     * Fetch the value of a register
+     * @param code the code of the register
+     * @return the value of the register
+     */
+    public long get(int code) {
+        int index = code >>> 2;
+        switch (code & 3) {
+        case ARG:
+            return args.get(index);
+        case RET:
+            return rets.get(index);
+        default:
+            return others.get(index);
+        }
+    }
+
+    /**
+     * Store a value into a register
+     * @param code the code of the register
+     * @param value the value to be stored
+     */
+    public void put(int code, long value) {
+        int index = code >>> 2;
+        switch (code & 3) {
+        case ARG:
+            args.put(index, value);
+            break;
+        case RET:
+            rets.put(index, value);
+            break;
+        default:
+            others.put(index, value);
+            break;
+        }
+    }
+
+    public long getArg(int index) {
+        return args.get(index);
+    }
+
+    public void putArg(int index, long value) {
+        args.put(index, value);
+    }
+
+    public long getRet(int index) {
+        return rets.get(index);
+    }
+
+    public void putRet(int index, long value) {
+        rets.put(index, value);
+    }
+
+    /**
+     *
+     * @return the values of the return registers up to the last one
+     *          written, with 0 for any not written below it
+     */
+    long[] returnValues() {
+        return rets.values();
+    }
+
+    /**
+     * Visit the values of the written registers
+     * @param visitor the visitor
+     */
+    void forEach(LongConsumer visitor) {
+        args.forEach(visitor);
+        rets.forEach(visitor);
+        others.forEach(visitor);
+    }
+
+    /**
+     * Write the names and values of the registers, for
+     * {@link #read(DataInput)}
+     * @param out the destination
+     * @throws IOException if writing fails
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(otherNames.size());
+        for (String name : otherNames)
+            out.writeUTF(name);
+        args.write(out);
+        rets.write(out);
+        others.write(out);
+    }
+
+    /**
+     * Restore registers saved by {@link #write(DataOutput)}.  Registers of
+     * the program loaded so far must have been assigned the same codes as
+     * when the registers were saved.
+     * @param in the source
+     * @throws IOException if reading fails, or the codes do not match
+     */
+    void read(DataInput in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            if (i < otherNames.size() ? !otherNames.get(i).equals(name)
+                    : codeOf(name) != (i << 2 | OTHER))
+                throw new IOException("Register " + name
+                        + " does not match the program");
+        }
+        args.read(in);
+        rets.read(in);
+        others.read(in);
+    }
+
+    /**
+     * A growable array of registers
+     */
+    private class Bank {
+        private long[] values = new long[8];
+        /** bitset of the registers that have been written */
+        private long[] written = new long[1];
+
+        long get(int index) {
+            if (index >= values.length) grow(index);
+            long bit = 1L << index;
+            if ((written[index >>> 6] & bit) == 0) {
+                /* Referencing a temp before having written to it - initialize
+                   with garbage */
+                written[index >>> 6] |= bit;
+                values[index] = r.nextLong();
+            }
+            return values[index];
+        }
+
+        void put(int index, long value) {
+            if (index >= values.length) grow(index);
+            written[index >>> 6] |= 1L << index;
+            values[index] = value;
+        }
+
+        /**
+         *
+         * @return one more than the index of the last register written
+         */
+        int count() {
+            for (int i = written.length - 1; i >= 0; i--)
+                if (written[i] != 0)
+                    return i * 64 + 64 - Long.numberOfLeadingZeros(written[i]);
+            return 0;
+        }
+
+        /**
+         * Unlike {@link #get(int)}, leaves registers not written unwritten
+         * @return the values of the registers up to the last one written
+         */
+        long[] values() {
+            return Arrays.copyOf(values, count());
+        }
+
+        void forEach(LongConsumer visitor) {
+            for (int i = 0; i < values.length; i++)
+                if ((written[i >>> 6] & 1L << i) != 0)
+                    visitor.accept(values[i]);
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(values.length);
+            for (long w : written)
+                out.writeLong(w);
+            for (long v : values)
+                out.writeLong(v);
+        }
+
+        void read(DataInput in) throws IOException {
+            int capacity = in.readInt();
+            values = new long[capacity];
+            written = new long[(capacity + 63) >>> 6];
+            for (int i = 0; i < written.length; i++)
+                written[i] = in.readLong();
+            for (int i = 0; i < capacity; i++)
+                values[i] = in.readLong();
+        }
+
+        private void grow(int index) {
+            int capacity = Math.max(values.length * 2, index + 1);
+            values = Arrays.copyOf(values, capacity);
+            written = Arrays.copyOf(written, (capacity + 63) >>> 6);
+        }
+    }
+}
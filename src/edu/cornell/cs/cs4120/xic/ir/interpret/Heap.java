@@ -0,0 +1,47 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * The memory of a simulated program, as an array of words.
+ *
+ * The simulator converts byte addresses to word indices and checks them
+ * against {@link #size()} before accessing the heap, so implementations may
+ * assume that every index passed to them is in range.  Words that have not
+ * been accessed hold garbage derived from the heap's seed, see
+ * {@link Garbage}.
+ */
+public interface Heap {
+    /**
+     *
+     * @return the number of words in the heap
+     */
+    long size();
+
+    /**
+     *
+     * @return the seed of the garbage in words that have not been accessed
+     */
+    long seed();
+
+    /**
+     *
+     * @param from the index of the first word of a range
+     * @param to the index after the last word of the range
+     * @return false if no word in the range has been accessed, so that the
+     *          range still holds the garbage derived from {@link #seed()}
+     */
+    boolean isTouched(long from, long to);
+
+    /**
+     * Read a word
+     * @param index the index of the word, in {@code [0, size())}
+     * @return the value of the word
+     */
+    long read(long index);
+
+    /**
+     * Write a word
+     * @param index the index of the word, in {@code [0, size())}
+     * @param value the value to be written
+     */
+    void store(long index, long value);
+}
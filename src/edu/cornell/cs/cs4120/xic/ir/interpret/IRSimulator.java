@@ -1,16 +1,15 @@
 package edu.cornell.cs.cs4120.xic.ir.interpret;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
-import java.util.Stack;
+import java.util.function.LongConsumer;
 
 import edu.cornell.cs.cs4120.util.InternalCompilerError;
 import edu.cornell.cs.cs4120.xic.ir.IRBinOp;
@@ -27,7 +26,6 @@ import edu.cornell.cs.cs4120.xic.ir.IRName;
 import edu.cornell.cs.cs4120.xic.ir.IRNode;
 import edu.cornell.cs.cs4120.xic.ir.IRReturn;
 import edu.cornell.cs.cs4120.xic.ir.IRTemp;
-import edu.cornell.cs.cs4120.xic.ir.visit.InsnMapsBuilder;
 import polyglot.util.SerialVersionUID;
 
 /**
@@ -40,6 +38,9 @@ import polyglot.util.SerialVersionUID;
  * before CALL is executed.
  */
 public class IRSimulator {
+    /** the program, shared with other simulators */
+    private final PreparedProgram program;
+
     /** compilation unit to be interpreted */
     private IRCompUnit compUnit;
 
@@ -53,25 +54,241 @@ public class IRSimulator {
     /** a random number generator for initializing garbage */
     protected Random r;
 
-    /** global registers (register name -> value) */
-    private Map<String, Long> regs;
+    /** registers shared across calls */
+    protected GlobalRegisters globals;
+
+    /**
+     * register of each TEMP instruction by address: a slot of the
+     * function's frame if nonnegative, otherwise {@code -1 - code} where
+     * {@code code} identifies a global register
+     */
+    protected int[] tempBindings;
 
     /** heap */
-    private long mem[];
+    private Heap heap;
 
-    /** heap pointer to lowest unallocated region */
-    private long heapPtr;
+    /** number of words in the heap */
+    private long heapWords;
+
+    /** the allocator behind {@link #malloc(long)} */
+    private Allocator allocator;
+
+    /**
+     * whether functions may be compiled to closures or JVM bytecode, whose
+     * values are invisible to {@link #scanRoots}
+     */
+    private boolean compiledCode;
 
     private ExprStack exprStack;
-    private BufferedReader inReader;
 
-    private Set<String> libraryFunctions;
-    private List<String> ctors;
+    /** interned names of global registers, functions and labels */
+    protected List<String> symbols;
+    protected Map<String, Integer> symbolIds;
+
+    /** the source of the program's input */
+    private InputSource input;
+
+    /** the destination of the program's output */
+    private OutputSink output;
+
+    /** functions implemented by the simulator */
+    protected IntrinsicRegistry intrinsics;
+
+    /** how function bodies are executed */
+    protected ExecutionMode mode;
+
+    /** map from function name to the slot assignment of its registers */
+    protected Map<String, FrameLayout> layouts;
+
+    /** functions by id, with their compiled forms */
+    protected FunctionHandle[] functions;
+
+    /** map from function name to id */
+    protected Map<String, Integer> functionIds;
 
-    protected static int debugLevel = 0;
+    /** map from symbol id to the function of that name, if any */
+    private FunctionHandle[] symbolFunctions;
+
+    /**
+     * map from symbol id to its value as a NAME, or
+     * {@link PreparedProgram#UNRESOLVED}
+     */
+    private long[] symbolAddrs;
+
+    /** map from address of a NAME instruction to the symbol id of the name */
+    private int[] nameSymbols;
+
+    /*
+     * monomorphic inline caches of computed calls, indexed by the address
+     * of the CALL instruction
+     */
+    private long[] cachedTargets;
+    private FunctionHandle[] cachedFunctions;
+
+    /** frames of functions running on the frame stack, innermost last */
+    private ExecutionFrame[] frames;
+    private int frameCount;
+
+    /** maximum number of frames on the frame stack */
+    protected int maxFrames;
+
+    /** frames of returned calls, ready for reuse */
+    private ExecutionFrame[] framePool;
+    private int pooledFrames;
+
+    /** operand stacks of bytecode frames, stacked like the frames */
+    private long[] operandStack;
+
+    /* a call requested by an interpreted frame, see beginCall */
+    private FunctionHandle pendingCallee;
+    private long[] pendingArgs;
+
+    /** the result of a call completed by beginCall */
+    private long callResult;
+
+    /**
+     * steps left before {@link #refill()} is due, i.e., before the step
+     * or time limit is checked, or the started call is suspended
+     */
+    private long steps;
+
+    /** the value {@link #steps} was last filled to */
+    private long granted;
+
+    /** steps left of the running slice of the started call */
+    private long slice;
+
+    /* limits, see setStepLimit etc. */
+    private long stepLimit;
+    private long allocationLimit;
+    private int maxDepth;
+    private long timeLimit;
+
+    /** whether the limits require every function to run on the frame stack */
+    private boolean framesOnly;
+
+    /* usage */
+    private long stepsTaken;
+    private long wordsAllocated;
+    private long timeUsed;
+
+    /** number of compiled functions active on the Java stack */
+    private int compiledDepth;
+
+    /** arguments of a direct call refused by the JIT bridge */
+    private long[] deferredArgs;
+
+    /** the profiler counting steps, or null */
+    private ExecutionProfiler profiler;
+
+    /** number of active calls through the public interface */
+    private int entries;
+
+    /** when the outermost of them began */
+    private long activeSince;
+
+    /** the state of the call begun by {@link #start}, or null if none */
+    private Status status;
+
+    /** the result of the started call, once it has finished */
+    private long result;
+
+    /** the trap that ended the started call, if any */
+    private Trap trap;
+
+    /** arguments of the intrinsic being run, if any */
+    private long[] intrinsicArgs;
+
+    /** the services of this simulator available to JIT-compiled code */
+    private JitRuntime jitRuntime;
+
+    /** map from function name to its counters, in tiered mode */
+    protected Map<String, TierProfile> profiles;
+
+    /** promotions performed so far, in tiered mode */
+    protected List<TierProfile.Transition> transitions;
+
+    /** number of calls after which a function is promoted */
+    protected long invocationThreshold;
+
+    /** number of back edges after which a function is promoted */
+    protected long backEdgeThreshold;
+
+    /** the engine functions are promoted to */
+    protected ExecutionMode tieredTarget;
+
+    /** how much to trace: nothing if 0, stores if 1, every step if 2 */
+    protected int debugLevel;
 
     public static final int DEFAULT_HEAP_SIZE = 10240;
 
+    public static final int DEFAULT_MAX_FRAMES = 1 << 20;
+
+    /** maximum number of idle frames kept for reuse */
+    private static final int FRAME_POOL_SIZE = 256;
+
+    /** a step budget that does not run out */
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    /** number of steps between checks of the time limit */
+    private static final long CHECK_INTERVAL = 1 << 14;
+
+    /**
+     * number of compiled functions that may be active on the Java stack;
+     * deeper calls run on the frame stack, as bytecode, so that recursion
+     * is bounded by the frame budget rather than the thread's stack size
+     */
+    static final int MAX_COMPILED_DEPTH = 128;
+
+    /**
+     * the trap for compiled code that overflows the Java stack, created
+     * ahead of time since there is no stack left to initialize classes
+     * where the overflow is caught; traps have no stack trace to share
+     */
+    private static final LimitExceeded STACK_EXHAUSTED =
+            new LimitExceeded(Limit.DEPTH, "Call depth exceeds the Java stack");
+
+    public static final long DEFAULT_INVOCATION_THRESHOLD = 1000;
+    public static final long DEFAULT_BACK_EDGE_THRESHOLD = 10000;
+
+    /**
+     * Strategies for executing function bodies
+     */
+    public enum ExecutionMode {
+        /** walk the IR tree, one node at a time */
+        TREE,
+        /** run bytecode produced by {@link BytecodeCompiler} */
+        BYTECODE,
+        /**
+         * run closures produced by {@link ClosureCompiler}, falling back to
+         * bytecode for functions that cannot be compiled to closures
+         */
+        CLOSURE,
+        /**
+         * run JVM bytecode produced by {@link JitCompiler}, falling back to
+         * closures and then bytecode for functions that cannot be compiled
+         */
+        JIT,
+        /**
+         * start every function in the tree interpreter, and promote it to a
+         * faster engine once it has been called or has looped often enough
+         */
+        TIERED;
+    }
+
+    /**
+     * States of a call begun by {@link IRSimulator#start}, and outcomes of a
+     * call by {@link IRSimulator#tryCall}
+     */
+    public enum Status {
+        /** the call has returned, see {@link IRSimulator#result()} */
+        FINISHED,
+        /** the call ran out of steps and can be resumed */
+        SUSPENDED,
+        /** the call trapped, see {@link IRSimulator#trap()} */
+        TRAPPED;
+    }
+
     /**
      * Construct an IR interpreter with a default heap size
      * @param compUnit the compilation unit to be interpreted
@@ -86,47 +303,209 @@ public class IRSimulator {
      * @param heapSize the heap size
      */
     public IRSimulator(IRCompUnit compUnit, int heapSize) {
-        this.compUnit = compUnit;
+        this(compUnit, heapSize, ExecutionMode.TREE);
+    }
+
+    /**
+     * Construct an IR interpreter
+     * @param compUnit the compilation unit to be interpreted
+     * @param heapSize the heap size
+     * @param mode how function bodies are executed
+     */
+    public IRSimulator(IRCompUnit compUnit, int heapSize,
+            ExecutionMode mode) {
+        this(compUnit, heapSize, mode, IntrinsicRegistry.standard());
+    }
+
+    /**
+     * Construct an IR interpreter
+     * @param compUnit the compilation unit to be interpreted
+     * @param heapSize the heap size
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator, usually
+     *          {@link IntrinsicRegistry#standard()} plus any user intrinsics
+     */
+    public IRSimulator(IRCompUnit compUnit, int heapSize, ExecutionMode mode,
+            IntrinsicRegistry intrinsics) {
+        this(compUnit, new ArrayHeap(heapSize), mode, intrinsics);
+    }
+
+    /**
+     * Construct an IR interpreter with a given heap, e.g., a
+     * {@link DirectHeap} for programs that need more memory than fits in
+     * the Java heap
+     * @param compUnit the compilation unit to be interpreted
+     * @param heap the heap
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator, usually
+     *          {@link IntrinsicRegistry#standard()} plus any user intrinsics
+     */
+    public IRSimulator(IRCompUnit compUnit, Heap heap, ExecutionMode mode,
+            IntrinsicRegistry intrinsics) {
+        this(compUnit, heap, new BumpAllocator(), mode, intrinsics);
+    }
+
+    /**
+     * Construct an IR interpreter with a given heap and allocator, e.g., a
+     * {@link MarkSweepAllocator} for programs that allocate more memory
+     * than they keep.  Allocators that need to find roots restrict
+     * execution to the tree interpreter and bytecode.
+     * @param compUnit the compilation unit to be interpreted
+     * @param heap the heap
+     * @param allocator the allocator, which must not be shared with other
+     *          simulators
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator, usually
+     *          {@link IntrinsicRegistry#standard()} plus any user intrinsics
+     */
+    public IRSimulator(IRCompUnit compUnit, Heap heap, Allocator allocator,
+            ExecutionMode mode, IntrinsicRegistry intrinsics) {
+        this(compUnit, heap, allocator, mode, intrinsics, true);
+    }
+
+    /**
+     * Construct an IR interpreter
+     * @param compUnit the compilation unit to be interpreted
+     * @param heap the heap
+     * @param allocator the allocator
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator
+     * @param initialize whether to run the constructors of the program,
+     *          which {@link Snapshot#restore} skips
+     */
+    IRSimulator(IRCompUnit compUnit, Heap heap, Allocator allocator,
+            ExecutionMode mode, IntrinsicRegistry intrinsics,
+            boolean initialize) {
+        this(new PreparedProgram(compUnit, mode, intrinsics),
+             heap,
+             allocator,
+             initialize);
+    }
+
+    /**
+     * Construct an IR interpreter for a prepared program, with a default
+     * heap size
+     * @param program the program, which may be shared with other simulators
+     */
+    public IRSimulator(PreparedProgram program) {
+        this(program, new ArrayHeap(DEFAULT_HEAP_SIZE), new BumpAllocator());
+    }
+
+    /**
+     * Construct an IR interpreter for a prepared program.  Nothing of the
+     * program is prepared again, so simulators are cheap to create, and
+     * simulators of the same program may run on different threads.
+     * @param program the program, which may be shared with other simulators
+     * @param heap the heap
+     * @param allocator the allocator, which must not be shared with other
+     *          simulators
+     */
+    public IRSimulator(PreparedProgram program, Heap heap,
+            Allocator allocator) {
+        this(program, heap, allocator, true);
+    }
+
+    /**
+     * Construct an IR interpreter for a prepared program
+     * @param program the program
+     * @param heap the heap
+     * @param allocator the allocator
+     * @param initialize whether to run the constructors of the program,
+     *          which {@link Snapshot#restore} skips
+     */
+    IRSimulator(PreparedProgram program, Heap heap, Allocator allocator,
+            boolean initialize) {
+        this.program = program;
+        compUnit = program.compUnit;
+        mode = program.mode;
 
         r = new Random();
 
-        regs = new HashMap<>();
+        globals = new GlobalRegisters(r, program.registers);
 
-        mem = new long[heapSize];
-        // initialize heap to garbage
-        for (int i = 0; i < heapSize; i++)
-            mem[i] = r.nextLong();
-        // initialize heap pointer
-        heapPtr = 0;
+        this.heap = heap;
+        heapWords = heap.size();
+        this.allocator = allocator;
+        compiledCode = !allocator.needsRoots();
 
         exprStack = new ExprStack();
-        inReader = new BufferedReader(new InputStreamReader(System.in));
-
-        libraryFunctions = new LinkedHashSet<>();
-        // io declarations
-        libraryFunctions.add("_Iprint_pai");
-        libraryFunctions.add("_Iprintln_pai");
-        libraryFunctions.add("_Ireadln_ai");
-        libraryFunctions.add("_Igetchar_i");
-        libraryFunctions.add("_Ieof_b");
-        // conv declarations
-        libraryFunctions.add("_IparseInt_t2ibai");
-        libraryFunctions.add("_IunparseInt_aii");
-        // special declarations
-        libraryFunctions.add("_I_alloc_i");
-        libraryFunctions.add("_I_outOfBounds_p");
-        // other declarations
-        libraryFunctions.add("_Iassert_pb");
-
-        InsnMapsBuilder imb = new InsnMapsBuilder();
-        compUnit = (IRCompUnit) imb.visit(compUnit);
-        indexToInsn = imb.indexToInsn();
-        insnToIndex = imb.insnToIndex();
-        nameToIndex = imb.nameToIndex();
-        ctors = imb.ctors();
-
-        for (int i = 0; i < ctors.size(); ++i)
-            call(ctors.get(i), new long[] {});
+        frames = new ExecutionFrame[16];
+        maxFrames = DEFAULT_MAX_FRAMES;
+        framePool = new ExecutionFrame[FRAME_POOL_SIZE];
+        operandStack = new long[256];
+        steps = granted = slice = UNLIMITED;
+        stepLimit = allocationLimit = timeLimit = UNLIMITED;
+        maxDepth = Integer.MAX_VALUE;
+        input = InputSource.console();
+        output = OutputSink.console();
+
+        intrinsics = program.intrinsics;
+        indexToInsn = program.indexToInsn;
+        insnToIndex = program.insnToIndex;
+        nameToIndex = program.nameToIndex;
+        tempBindings = program.tempBindings;
+        layouts = program.layouts;
+        functionIds = program.functionIds;
+        symbols = program.symbols;
+        symbolIds = program.symbolIds;
+        symbolAddrs = program.symbolAddrs;
+        nameSymbols = program.nameSymbols;
+
+        if (mode == ExecutionMode.TIERED) {
+            // Functions are promoted one simulator at a time.
+            functions = copyFunctions();
+            profiles = new HashMap<>();
+            for (FunctionHandle f : functions) {
+                if (f.isLibrary()) continue;
+                f.profile = new TierProfile(f.name);
+                profiles.put(f.name, f.profile);
+            }
+            transitions = new ArrayList<>();
+            invocationThreshold = DEFAULT_INVOCATION_THRESHOLD;
+            backEdgeThreshold = DEFAULT_BACK_EDGE_THRESHOLD;
+            tieredTarget = compiledCode ? ExecutionMode.JIT
+                    : ExecutionMode.BYTECODE;
+        }
+        else if (!compiledCode && (mode == ExecutionMode.CLOSURE
+                || mode == ExecutionMode.JIT)) {
+            functions = copyFunctions();
+            for (FunctionHandle f : functions)
+                if (!f.isLibrary()) f.bytecode = program.bytecode(f);
+        }
+        else functions = program.functions;
+
+        symbolFunctions = new FunctionHandle[symbols.size()];
+        for (int i = 0; i < symbolFunctions.length; i++) {
+            int id = program.symbolFunctions[i];
+            if (id >= 0) symbolFunctions[i] = functions[id];
+        }
+        cachedTargets = new long[indexToInsn.size()];
+        cachedFunctions = new FunctionHandle[indexToInsn.size()];
+
+        jitRuntime = new JitBridge();
+
+        if (initialize)
+            for (String ctor : program.ctors)
+                call(ctor, new long[] {});
+    }
+
+    /**
+     *
+     * @return copies of the handles of the program, with no compiled forms
+     */
+    private FunctionHandle[] copyFunctions() {
+        FunctionHandle[] copies = new FunctionHandle[program.functions.length];
+        for (int i = 0; i < copies.length; i++)
+            copies[i] = new FunctionHandle(program.functions[i]);
+        return copies;
+    }
+
+    /**
+     *
+     * @return the program this simulator runs
+     */
+    public PreparedProgram program() {
+        return program;
     }
 
     /**
@@ -136,14 +515,7 @@ public class IRSimulator {
      * @return the value at the given register
      */
     protected long get(ExecutionFrame frame, String tempName) {
-        if (isGlobalRegister(tempName)) {
-            if (!regs.containsKey(tempName)) {
-                /* Referencing a temp before having written to it - initialize
-                   with garbage */
-                regs.put(tempName, r.nextLong());
-            }
-            return regs.get(tempName);
-        }
+        if (isGlobalRegister(tempName)) return getGlobal(tempName);
         else return frame.get(tempName);
     }
 
@@ -155,13 +527,48 @@ public class IRSimulator {
      */
     protected void put(ExecutionFrame frame, String tempName, long value) {
         if (isGlobalRegister(tempName))
-            regs.put(tempName, value);
+            putGlobal(tempName, value);
         else frame.put(tempName, value);
     }
 
+    /**
+     * Fetch the value at the given global register
+     * @param tempName name of the register
+     * @return the value at the given register
+     */
+    protected long getGlobal(String tempName) {
+        return globals.get(globals.codeOf(tempName));
+    }
+
+    /**
+     * Fetch the value at the given global register
+     * @param reg the code of the register
+     * @return the value at the given register
+     */
+    protected long getGlobal(int reg) {
+        return globals.get(reg);
+    }
+
+    /**
+     * Store a value into the given global register
+     * @param tempName name of the register
+     * @param value value to be stored
+     */
+    protected void putGlobal(String tempName, long value) {
+        globals.put(globals.codeOf(tempName), value);
+    }
+
+    /**
+     * Store a value into the given global register
+     * @param reg the code of the register
+     * @param value value to be stored
+     */
+    protected void putGlobal(int reg, long value) {
+        globals.put(reg, value);
+    }
+
     protected boolean isGlobalRegister(String name) {
-        return name.startsWith(Configuration.ABSTRACT_ARG_PREFIX)
-                || name.startsWith(Configuration.ABSTRACT_RET_PREFIX);
+        return GlobalRegisters.isGlobal(name);
     }
 
     /**
@@ -174,10 +581,25 @@ public class IRSimulator {
         if (size % Configuration.WORD_SIZE != 0)
             throw new Trap("Can only allocate in chunks of "
                     + Configuration.WORD_SIZE + " bytes!");
+        long words = size / Configuration.WORD_SIZE;
+        if (words > allocationLimit - wordsAllocated)
+            throw new LimitExceeded(Limit.MEMORY,
+                                    "Allocation limit of " + allocationLimit
+                                            + " words exceeded");
+
+        long addr = allocator.allocate(this, size);
+        wordsAllocated += words;
+        return addr;
+    }
 
-        long retval = heapPtr;
-        heapPtr += size;
-        return retval;
+    /**
+     * Free a region allocated on the heap, so that the allocator may reuse
+     * it
+     * @param addr the starting address of the region, as returned by
+     *          {@link #malloc(long)}
+     */
+    public void free(long addr) {
+        allocator.free(this, addr);
     }
 
     /**
@@ -186,7 +608,7 @@ public class IRSimulator {
      * @return the value at {@code addr}
      */
     public long read(long addr) {
-        return mem[(int) getMemoryIndex(addr)];
+        return heap.read(getMemoryIndex(addr));
     }
 
     /**
@@ -195,14 +617,72 @@ public class IRSimulator {
      * @param value the value to be written
      */
     public void store(long addr, long value) {
-        mem[(int) getMemoryIndex(addr)] = value;
+        heap.store(getMemoryIndex(addr), value);
     }
 
     protected long getMemoryIndex(long addr) {
         if (addr % Configuration.WORD_SIZE != 0)
             throw new Trap("Unaligned memory access: " + addr + " (word size="
                     + Configuration.WORD_SIZE + ")");
-        return addr / Configuration.WORD_SIZE;
+        long index = addr / Configuration.WORD_SIZE;
+        if (index < 0 || index >= heapWords)
+            throw new Trap("Out of bounds memory access: " + addr
+                    + " (heap size=" + heapWords * Configuration.WORD_SIZE
+                    + ")");
+        return index;
+    }
+
+    /**
+     *
+     * @return the heap of the simulated program
+     */
+    public Heap heap() {
+        return heap;
+    }
+
+    /**
+     *
+     * @return the address of the lowest unallocated region of the heap
+     */
+    public long heapPointer() {
+        return allocator.top();
+    }
+
+    public Allocator allocator() {
+        return allocator;
+    }
+
+    /**
+     * Visit every value that the program could use as a pointer without
+     * loading it from the heap: written registers of the frames on the
+     * frame stack, global registers, the expression and operand stacks, and
+     * the arguments of the running intrinsic.  Values held by closures and
+     * JIT-compiled code are not visited.
+     * @param visitor the visitor
+     */
+    void scanRoots(LongConsumer visitor) {
+        globals.forEach(visitor);
+        if (intrinsicArgs != null)
+            for (long arg : intrinsicArgs)
+                visitor.accept(arg);
+        for (int i = 0; i < frameCount; i++)
+            frames[i].forEachRegister(visitor);
+        exprStack.forEach(visitor);
+        int sp = frameCount == 0 ? 0 : frames[frameCount - 1].sp;
+        for (int i = 0; i < sp; i++)
+            visitor.accept(operandStack[i]);
+    }
+
+    IRCompUnit compUnit() {
+        return compUnit;
+    }
+
+    /**
+     *
+     * @return whether a call is in progress or suspended
+     */
+    boolean isRunning() {
+        return frameCount > 0 || status == Status.SUSPENDED;
     }
 
     /**
@@ -217,130 +697,1147 @@ public class IRSimulator {
      *          {@link Configuration#ABSTRACT_RET_PREFIX} index 0
      */
     public long call(String name, long... args) {
-        // Catch standard library calls.
-        if (libraryFunctions.contains(name)) return libraryCall(name, args);
+        FunctionHandle f = function(name);
+        beginTiming();
+        try {
+            return call(f, args);
+        }
+        finally {
+            endTiming();
+            flushOutput();
+        }
+    }
+
+    /**
+     * Simulate a function call as {@link #call(String, long...)} does, but
+     * report a trap in the result rather than throwing it, so that calls
+     * expected to trap, e.g., by tests of bounds checks, cost no more than
+     * calls that return
+     * @param name name of the function call
+     * @param args arguments to the function call
+     * @return the outcome of the call, {@link Status#FINISHED} or
+     *          {@link Status#TRAPPED}
+     */
+    public ExecutionResult tryCall(String name, long... args) {
+        FunctionHandle f = function(name);
+        beginTiming();
+        try {
+            call(f, args);
+            return new ExecutionResult(Status.FINISHED,
+                                       null,
+                                       globals.returnValues());
+        }
+        catch (Trap e) {
+            return new ExecutionResult(Status.TRAPPED, e, null);
+        }
+        finally {
+            endTiming();
+            flushOutput();
+        }
+    }
 
-        IRFuncDecl fDecl = compUnit.getFunction(name);
-        if (fDecl == null)
+    private FunctionHandle function(String name) {
+        Integer id = functionIds.get(name);
+        if (id == null)
             throw new InternalCompilerError("Tried to call an unknown function: '"
                     + name + "'");
+        return functions[id];
+    }
+
+    /**
+     * Simulate a call of a resolved function.
+     * @param f the function to be called
+     * @param args arguments to the function call
+     * @return the value of register
+     *          {@link Configuration#ABSTRACT_RET_PREFIX} index 0
+     */
+    protected long call(FunctionHandle f, long[] args) {
+        // Catch standard library calls.
+        if (f.intrinsic != null) return invoke(f.intrinsic, args);
+        if (enter(f)) return run(f, args);
+        return callCompiled(f, args);
+    }
 
-        // Create a new stack frame.
-        ExecutionFrame frame = new ExecutionFrame(fDecl);
+    /**
+     * Count a call of a function that is not an intrinsic, promoting the
+     * function if it has become hot.
+     * @param f the function being called
+     * @return whether the function runs on the frame stack, i.e., in the
+     *          tree interpreter or as bytecode, which a started call, a
+     *          simulator with a step, time or depth limit or a profiler, and
+     *          a call nested too deeply in compiled code always does
+     */
+    private boolean enter(FunctionHandle f) {
+        TierProfile profile = f.profile;
+        if (profile != null && profile.countInvocation() >= invocationThreshold
+                && !profile.isPromoted())
+            promote(f, false);
+        return f.jit == null && f.closure == null
+                || status == Status.SUSPENDED || framesOnly
+                || compiledDepth >= MAX_COMPILED_DEPTH;
+    }
+
+    /**
+     * Call a function compiled to closures or JVM bytecode.  Such functions
+     * run on the Java stack.
+     */
+    private long callCompiled(FunctionHandle f, long[] args) {
+        checkDepth();
+        // Restored on the way out, also over direct calls among JIT-compiled
+        // functions abandoned by a trap.
+        int depth = compiledDepth++;
+        try {
+            if (f.jit != null) {
+                // Compiled code keeps its registers in JVM locals.
+                for (int i = 0; i < args.length; ++i)
+                    globals.putArg(i, args[i]);
+                return f.jit.invoke(jitRuntime);
+            }
+
+            ExecutionFrame frame = acquireFrame(f);
+            try {
+                for (int i = 0; i < args.length; ++i)
+                    globals.putArg(i, args[i]);
+                f.closure.run(frame);
+                return globals.getRet(0);
+            }
+            finally {
+                releaseFrame(frame);
+            }
+        }
+        catch (StackOverflowError e) {
+            // Only possible if the thread's stack is very small.  Let the
+            // error unwind to the outermost compiled call, where there is
+            // stack to spare again.
+            if (depth > 0) throw e;
+            throw STACK_EXHAUSTED;
+        }
+        finally {
+            compiledDepth = depth;
+        }
+    }
+
+    private void checkDepth() {
+        if (frameCount + compiledDepth >= maxDepth)
+            throw new LimitExceeded(Limit.DEPTH,
+                                    "Call depth limit of " + maxDepth
+                                            + " exceeded");
+    }
+
+    /**
+     * Begin a call from a frame on the frame stack.  If the callee runs on
+     * the frame stack as well, it is recorded in {@link #pendingCallee} for
+     * the dispatch loop to push; otherwise it is run right away.
+     * @param callee the function being called
+     * @param args arguments to the function call
+     * @return whether the callee is pending
+     */
+    private boolean beginCall(FunctionHandle callee, long[] args) {
+        if (callee.intrinsic != null)
+            callResult = invoke(callee.intrinsic, args);
+        else if (enter(callee)) {
+            pendingCallee = callee;
+            pendingArgs = args;
+            return true;
+        }
+        else callResult = callCompiled(callee, args);
+        return false;
+    }
+
+    /**
+     * Run a function on the frame stack.  Calls between interpreted
+     * functions push and pop frames in this loop instead of recursing on the
+     * Java stack.
+     * @param f the function to be run
+     * @param args arguments to the function call
+     * @return the value of register
+     *          {@link Configuration#ABSTRACT_RET_PREFIX} index 0
+     */
+    protected long run(FunctionHandle f, long[] args) {
+        int base = frameCount;
+        try {
+            pushFrame(f, args);
+            if (!dispatch(base))
+                throw new Trap("Out of steps in a call that cannot be "
+                        + "suspended");
+            return globals.getRet(0);
+        }
+        finally {
+            // Unwind frames abandoned by a trap.
+            unwind(base);
+        }
+    }
+
+    /**
+     * Run the frames on the frame stack until the frame above {@code base}
+     * returns or no steps are left.
+     * @param base the number of frames to be kept
+     * @return whether the frame returned, with its result in the first
+     *          return register
+     */
+    private boolean dispatch(int base) {
+        while (true) {
+            ExecutionFrame frame = frames[frameCount - 1];
+            boolean returned = frame.code != null
+                    ? execute(frame) : interpret(frame);
+            if (returned) {
+                long value = globals.getRet(0);
+                if (profiler != null) profiler.exit();
+                frames[--frameCount] = null;
+                releaseFrame(frame);
+                if (frameCount == base) return true;
+                returnTo(frames[frameCount - 1], value);
+            }
+            else if (pendingCallee != null) {
+                FunctionHandle callee = pendingCallee;
+                long[] calleeArgs = pendingArgs;
+                pendingCallee = null;
+                pendingArgs = null;
+                pushFrame(callee, calleeArgs);
+            }
+            else if (steps == 0 && !refill()) return false;
+        }
+    }
+
+    /**
+     * Account for the steps taken since {@link #steps} was last filled,
+     * enforce the step and time limits, and fill it again
+     * @return false if the started call is to be suspended
+     */
+    private boolean refill() {
+        settle();
+        if (stepsTaken >= stepLimit)
+            throw new LimitExceeded(Limit.STEPS,
+                                    "Step limit of " + stepLimit
+                                            + " exceeded");
+        if (timeLimit != UNLIMITED
+                && timeUsed + System.nanoTime() - activeSince > timeLimit)
+            throw new LimitExceeded(Limit.TIME,
+                                    "Time limit of " + timeLimit / 1000000
+                                            + " ms exceeded");
+        if (slice == 0) return false;
+        fill();
+        return true;
+    }
+
+    private void settle() {
+        long taken = granted - steps;
+        stepsTaken += taken;
+        if (slice != UNLIMITED) slice -= taken;
+        granted = steps;
+    }
+
+    private void fill() {
+        long n = Math.min(slice, Math.max(0, stepLimit - stepsTaken));
+        if (timeLimit != UNLIMITED) n = Math.min(n, CHECK_INTERVAL);
+        steps = granted = n;
+    }
+
+    private void beginTiming() {
+        if (entries++ == 0) activeSince = System.nanoTime();
+    }
+
+    private void endTiming() {
+        if (--entries == 0) timeUsed += System.nanoTime() - activeSince;
+    }
+
+    /**
+     * Pop the frames above {@code base}.
+     */
+    private void unwind(int base) {
+        // Discard what abandoned frames left on the expression stack, e.g.,
+        // when a trap interrupted an expression.
+        if (frameCount > base) exprStack.truncate(frames[base].stackMark);
+        while (frameCount > base) {
+            if (profiler != null) profiler.exit();
+            releaseFrame(frames[--frameCount]);
+            frames[frameCount] = null;
+        }
+        pendingCallee = null;
+        pendingArgs = null;
+    }
+
+    /**
+     * Begin a call that is run step by step by {@link #run(long)}.  A step
+     * is an IR node visited by the tree interpreter or a bytecode
+     * instruction; intrinsics run within the step that calls them, and an
+     * intrinsic called directly takes one step.  Until the call finishes,
+     * all functions run on the frame stack, in the tree interpreter or as
+     * bytecode, so that execution can stop after any step, and the
+     * simulator must not be used for other calls, except by intrinsics.
+     * @param name name of the function to be called
+     * @param args arguments to the function call
+     */
+    public void start(String name, long... args) {
+        if (isRunning())
+            throw new IllegalStateException("A call is already in progress");
+        FunctionHandle f = function(name);
+        status = Status.SUSPENDED;
+        trap = null;
+        if (f.intrinsic != null) {
+            // Run it as the only step.
+            pendingCallee = f;
+            pendingArgs = args;
+        }
+        else pushFrame(f, args);
+    }
+
+    /**
+     * Run the call begun by {@link #start} for at most the given number of
+     * steps
+     * @param maxSteps the step budget, or {@link #UNLIMITED}
+     * @return the state of the call, which may be resumed if
+     *          {@link Status#SUSPENDED}
+     */
+    public Status run(long maxSteps) {
+        if (status == null)
+            throw new IllegalStateException("No call has been started");
+        if (status != Status.SUSPENDED) return status;
+        boolean done = true;
+        settle();
+        slice = maxSteps;
+        fill();
+        beginTiming();
+        try {
+            if (pendingCallee != null) {
+                if (maxSteps == 0) {
+                    done = false;
+                    return status;
+                }
+                FunctionHandle f = pendingCallee;
+                pendingCallee = null;
+                result = invoke(f.intrinsic, pendingArgs);
+                pendingArgs = null;
+                status = Status.FINISHED;
+            }
+            else if (dispatch(0)) {
+                result = globals.getRet(0);
+                status = Status.FINISHED;
+            }
+            else done = false;
+        }
+        catch (Trap e) {
+            trap = e;
+            status = Status.TRAPPED;
+        }
+        catch (RuntimeException | Error e) {
+            // The simulator failed, e.g., on invalid IR.
+            status = null;
+            throw e;
+        }
+        finally {
+            endTiming();
+            settle();
+            slice = UNLIMITED;
+            fill();
+            if (done) unwind(0);
+            flushOutput();
+        }
+        return status;
+    }
+
+    /**
+     * Run the call begun by {@link #start} until it finishes or traps
+     * @return the state of the call
+     */
+    public Status resume() {
+        return run(UNLIMITED);
+    }
+
+    /**
+     * Abandon the call begun by {@link #start}, e.g., one that does not
+     * finish within a reasonable number of steps
+     */
+    public void abort() {
+        if (status == Status.SUSPENDED) unwind(0);
+        status = null;
+    }
+
+    /**
+     *
+     * @return the state of the call begun by {@link #start}, or null if
+     *          none has been started
+     */
+    public Status status() {
+        return status;
+    }
+
+    /**
+     *
+     * @return the value of register
+     *          {@link Configuration#ABSTRACT_RET_PREFIX} index 0 returned by
+     *          the call begun by {@link #start}
+     */
+    public long result() {
+        if (status != Status.FINISHED)
+            throw new IllegalStateException("The call has not finished");
+        return result;
+    }
+
+    /**
+     *
+     * @return the trap that ended the call begun by {@link #start}, or null
+     */
+    public Trap trap() {
+        return trap;
+    }
+
+    private void pushFrame(FunctionHandle f, long[] args) {
+        if (frameCount == maxFrames)
+            throw new Trap("Stack overflow: more than " + maxFrames
+                    + " frames!");
+        checkDepth();
+        if (profiler != null) profiler.enter(f);
+        ExecutionFrame frame = acquireFrame(f);
+        // The operand stack of a new frame starts above its caller's.
+        frame.sp = frameCount == 0 ? 0 : frames[frameCount - 1].sp;
+        frame.stackMark = exprStack.size();
+        BytecodeFunction code = frameCode(f);
+        if (code != null) enterBytecode(frame, code, 0);
+
+        // Pass the remaining arguments into registers.
+        for (int i = 0; i < args.length; ++i)
+            globals.putArg(i, args[i]);
+
+        if (frameCount == frames.length)
+            frames = Arrays.copyOf(frames, frameCount * 2);
+        frames[frameCount++] = frame;
+    }
+
+    /**
+     *
+     * @return the bytecode of a function that runs on the frame stack, or
+     *          null to run it in the tree interpreter
+     */
+    private BytecodeFunction frameCode(FunctionHandle f) {
+        // The profiler counts IR nodes, which only the tree interpreter
+        // visits.
+        if (profiler != null) return null;
+        if (f.bytecode != null || f.jit == null && f.closure == null)
+            return f.bytecode;
+        // A compiled function in a started call
+        return program.bytecode(f);
+    }
+
+    /**
+     * Take a frame from the pool, or create one if the pool is empty.
+     * @param f the function the frame is for
+     * @return a frame with no register written
+     */
+    private ExecutionFrame acquireFrame(FunctionHandle f) {
+        ExecutionFrame frame;
+        if (pooledFrames > 0) {
+            frame = framePool[--pooledFrames];
+            framePool[pooledFrames] = null;
+            frame.reset(f.fDecl, f.layout);
+        }
+        else frame = new ExecutionFrame(f.fDecl, f.layout);
+        frame.function = f;
+        return frame;
+    }
+
+    /**
+     * Return a frame that is no longer in use to the pool.
+     */
+    private void releaseFrame(ExecutionFrame frame) {
+        if (pooledFrames < framePool.length)
+            framePool[pooledFrames++] = frame;
+    }
+
+    /**
+     * Switch a frame to bytecode.
+     * @param frame the frame, whose {@code sp} marks the base of its
+     *          operand stack
+     * @param code the function body
+     * @param pc the instruction to continue at
+     */
+    private void enterBytecode(ExecutionFrame frame, BytecodeFunction code,
+            int pc) {
+        frame.code = code;
+        frame.pc = pc;
+        int size = frame.sp + code.maxStack;
+        if (size > operandStack.length)
+            operandStack = Arrays.copyOf(operandStack,
+                                         Math.max(size, operandStack.length * 2));
+    }
+
+    /**
+     * Deliver the result of a call to the suspended caller.
+     */
+    private void returnTo(ExecutionFrame frame, long value) {
+        if (frame.code != null)
+            operandStack[frame.sp++] = value;
+        else {
+            exprStack.pushValue(value);
+            frame.ip = indexToInsn.get(frame.index + 1);
+        }
+    }
+
+    /**
+     * Set how much of the execution to trace on standard output
+     * @param level 0 for nothing, 1 for stores, 2 for every step
+     */
+    public void setDebugLevel(int level) {
+        debugLevel = level;
+        exprStack.debugLevel = level;
+    }
+
+    /**
+     * Set the maximum number of frames on the frame stack.
+     * @param maxFrames the frame budget
+     */
+    public void setMaxFrames(int maxFrames) {
+        this.maxFrames = maxFrames;
+    }
+
+    /**
+     * Limit the number of steps, counted over all calls, after which the
+     * simulator traps with {@link Limit#STEPS}.  Steps are counted as for
+     * {@link #start}, so functions only run on the frame stack while a
+     * step limit is set.
+     * @param limit the number of steps, or {@link #UNLIMITED}
+     */
+    public void setStepLimit(long limit) {
+        settle();
+        stepLimit = limit;
+        updateLimits();
+    }
+
+    /**
+     * Limit the number of words, counted over all calls, that
+     * {@link #malloc(long)} may allocate before the simulator traps with
+     * {@link Limit#MEMORY}.  Freed memory is not given back.
+     * @param words the number of words, or {@link #UNLIMITED}
+     */
+    public void setAllocationLimit(long words) {
+        allocationLimit = words;
+    }
+
+    /**
+     * Limit the depth of calls, after which the simulator traps with
+     * {@link Limit#DEPTH}.  Functions only run on the frame stack while a
+     * depth limit is set; without one, compiled code that overflows the
+     * Java stack traps as well.
+     * @param depth the number of nested calls, or
+     *          {@link Integer#MAX_VALUE}
+     */
+    public void setMaxDepth(int depth) {
+        maxDepth = depth;
+        updateLimits();
+    }
+
+    /**
+     * Limit the time spent in calls, counted over all calls, after which
+     * the simulator traps with {@link Limit#TIME}.  The time is checked
+     * every few thousand steps, so functions only run on the frame stack
+     * while a time limit is set.  Intrinsics waiting for input are not
+     * interrupted.
+     * @param millis the number of milliseconds, or {@link #UNLIMITED}
+     */
+    public void setTimeLimit(long millis) {
+        settle();
+        timeLimit = millis == UNLIMITED ? UNLIMITED : millis * 1000000;
+        updateLimits();
+    }
+
+    private void updateLimits() {
+        framesOnly = stepLimit != UNLIMITED || timeLimit != UNLIMITED
+                || maxDepth != Integer.MAX_VALUE || profiler != null;
+        fill();
+    }
+
+    /**
+     * Count the steps of subsequent calls with a profiler.  While a profiler
+     * is set, all functions run in the tree interpreter.
+     * @param profiler the profiler, or null to stop profiling
+     */
+    public void setProfiler(ExecutionProfiler profiler) {
+        if (isRunning())
+            throw new IllegalStateException("A call is in progress");
+        if (profiler != null) profiler.attach(program);
+        this.profiler = profiler;
+        updateLimits();
+    }
+
+    /**
+     *
+     * @return the profiler counting steps, or null
+     */
+    public ExecutionProfiler profiler() {
+        return profiler;
+    }
+
+    /**
+     *
+     * @return the number of steps taken on the frame stack so far
+     */
+    public long stepsTaken() {
+        settle();
+        return stepsTaken;
+    }
+
+    /**
+     *
+     * @return the number of words allocated by {@link #malloc(long)} so far
+     */
+    public long wordsAllocated() {
+        return wordsAllocated;
+    }
+
+    /**
+     * Simulate a call of the function with the given id
+     * @param id id of the function, see {@link #functionIds}
+     * @param args arguments to the function call
+     * @return the value of the first return register
+     */
+    long callById(int id, long[] args) {
+        return call(functions[id], args);
+    }
+
+    /**
+     * Simulate a call through a computed address
+     * @param site address of the CALL instruction
+     * @param target address of the function, as produced by NAME
+     * @param args arguments to the function call
+     * @return the value of the first return register
+     */
+    long callIndirect(int site, long target, long[] args) {
+        return call(callTarget(site, target), args);
+    }
+
+    /**
+     * Resolve the target of a computed call, consulting the call site's
+     * inline cache first.
+     * @param site address of the CALL instruction
+     * @param target address of the function, as produced by NAME
+     * @return the function at {@code target}
+     */
+    protected FunctionHandle callTarget(int site, long target) {
+        FunctionHandle f = cachedFunctions[site];
+        if (f != null && cachedTargets[site] == target) return f;
+        f = functions[functionIds.get(functionAt(target))];
+        cachedTargets[site] = target;
+        cachedFunctions[site] = f;
+        return f;
+    }
+
+    /**
+     * Run a function body in the tree interpreter until it returns, calls
+     * a function that runs on the frame stack, or runs out of steps.  In
+     * tiered mode, the frame is switched to bytecode at a hot back edge.
+     * @param frame the execution frame of the function
+     * @return whether the function returned
+     */
+    protected boolean interpret(ExecutionFrame frame) {
+        while (true) {
+            if (steps == 0) return false;
+            steps--;
+            if (!frame.advance()) return true;
+            if (pendingCallee != null) return false;
+            if (frame.hot) {
+                frame.hot = false;
+                if (profiler != null) continue;
+                // The expression stack must hold nothing of this activation
+                // for the switch, which is the case between statements.
+                if (exprStack.size() != frame.stackMark) continue;
+                FunctionHandle f = frame.function;
+                if (!f.profile.isPromoted()) promote(f, true);
+                if (f.bytecode == null)
+                    f.bytecode = program.bytecode(f);
+                int pc = f.bytecode.pcOf(insnToIndex.get(frame.ip));
+                if (pc >= 0) {
+                    enterBytecode(frame, f.bytecode, pc);
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile a function for the tiered target engine, falling back to
+     * slower engines for functions that the target cannot compile.
+     * @param f the function
+     * @param byBackEdges whether the back-edge count triggered the promotion
+     */
+    protected void promote(FunctionHandle f, boolean byBackEdges) {
+        TierProfile profile = f.profile;
+        ExecutionMode tier = null;
+        if (tieredTarget == ExecutionMode.JIT) {
+            f.jit = program.jit(f);
+            if (f.jit != null) tier = ExecutionMode.JIT;
+        }
+        if (tier == null && tieredTarget != ExecutionMode.BYTECODE) {
+            f.closure = program.closure(f);
+            if (f.closure != null) tier = ExecutionMode.CLOSURE;
+        }
+        if (tier == null) {
+            if (f.bytecode == null)
+                f.bytecode = program.bytecode(f);
+            tier = ExecutionMode.BYTECODE;
+        }
+        ExecutionMode from = profile.tier();
+        profile.setTier(tier);
+        TierProfile.Transition t =
+                new TierProfile.Transition(profile, from, byBackEdges);
+        transitions.add(t);
+        if (debugLevel > 0) System.out.println("Promoted " + t);
+    }
+
+    /**
+     * Set the promotion thresholds of tiered mode.
+     * @param invocations number of calls after which a function is promoted
+     * @param backEdges number of backward jumps after which a function is
+     *          promoted
+     */
+    public void setTierThresholds(long invocations, long backEdges) {
+        invocationThreshold = invocations;
+        backEdgeThreshold = backEdges;
+    }
+
+    /**
+     * Set the engine functions are promoted to in tiered mode.
+     * @param target one of BYTECODE, CLOSURE, or JIT
+     */
+    public void setTieredTarget(ExecutionMode target) {
+        if (target == ExecutionMode.TREE || target == ExecutionMode.TIERED)
+            throw new IllegalArgumentException("Cannot promote to " + target);
+        tieredTarget = compiledCode ? target : ExecutionMode.BYTECODE;
+    }
+
+    /**
+     *
+     * @return map from function name to its execution counters, or an empty
+     *          map if the simulator is not in tiered mode
+     */
+    public Map<String, TierProfile> tierProfiles() {
+        if (profiles == null) return Collections.emptyMap();
+        return Collections.unmodifiableMap(profiles);
+    }
+
+    /**
+     *
+     * @return the promotions performed so far, in order
+     */
+    public List<TierProfile.Transition> tierTransitions() {
+        if (transitions == null) return Collections.emptyList();
+        return Collections.unmodifiableList(transitions);
+    }
+
+    /**
+     * Simulate a library function call
+     * @param name name of the function call
+     * @param args arguments to the function call, which may include
+     *          the pointer to the location of multiple results
+     * @return the address of the result
+     */
+    protected long libraryCall(String name, long[] args) {
+        Intrinsic intrinsic = intrinsics.lookup(name);
+        if (intrinsic == null)
+            throw new InternalCompilerError("Unsupported library function: "
+                    + name);
+        return invoke(intrinsic, args);
+    }
+
+    private long invoke(Intrinsic intrinsic, long[] args) {
+        long[] callerArgs = intrinsicArgs;
+        intrinsicArgs = args;
+        try {
+            return intrinsic.invoke(this, args);
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError("I/O Exception in simulator");
+        }
+        finally {
+            intrinsicArgs = callerArgs;
+        }
+    }
+
+    /**
+     *
+     * @return the destination of the program's output
+     */
+    public OutputSink output() {
+        return output;
+    }
+
+    /**
+     * Redirect the program's output
+     * @param output the new destination
+     */
+    public void setOutput(OutputSink output) {
+        flushOutput();
+        this.output = output;
+    }
+
+    private void flushOutput() {
+        try {
+            output.flush();
+        }
+        catch (IOException e) {
+            throw new InternalCompilerError("I/O Exception in simulator");
+        }
+    }
 
-        // Pass the remaining arguments into registers.
-        for (int i = 0; i < args.length; ++i)
-            put(frame, Configuration.ABSTRACT_ARG_PREFIX + i, args[i]);
+    /**
+     *
+     * @return the source of the program's input
+     */
+    public InputSource input() {
+        return input;
+    }
 
-        // Simulate!
-        while (frame.advance())
-            ;
+    /**
+     * Take the program's input from another source
+     * @param input the new source
+     */
+    public void setInput(InputSource input) {
+        this.input = input;
+    }
 
-        return get(frame, Configuration.ABSTRACT_RET_PREFIX + 0);
+    /**
+     * Store a result of an intrinsic into a return register
+     * @param index index of the return register
+     * @param value the result
+     * @return {@code value}
+     */
+    public long setReturn(int index, long value) {
+        globals.putRet(index, value);
+        return value;
     }
 
     /**
-     * Simulate a library function call
-     * @param name name of the function call
-     * @param args arguments to the function call, which may include
-     *          the pointer to the location of multiple results
-     * @return the address of the result
+     * Allocate a Xi array holding the characters of a string
+     * @param s the string
+     * @return the address of the first element
      */
-    protected long libraryCall(String name, long[] args) {
+    public long allocString(CharSequence s) {
         final int ws = Configuration.WORD_SIZE;
-        try {
-            switch (name) {
-            // io declarations
-            case "_Iprint_pai": {
-                long ptr = args[0], size = read(ptr - ws);
-                for (long i = 0; i < size; ++i)
-                    System.out.print((char) read(ptr + i * ws));
-                return 0;
-            }
-            case "_Iprintln_pai": {
-                long ptr = args[0], size = read(ptr - ws);
-                for (long i = 0; i < size; ++i)
-                    System.out.print((char) read(ptr + i * ws));
-                System.out.println();
-                return 0;
-            }
-            case "_Ireadln_ai": {
-                String line = inReader.readLine();
-                int len = line.length();
-                long ptr = malloc((len + 1) * ws);
-                store(ptr, len);
-                for (int i = 0; i < len; ++i)
-                    store(ptr + (i + 1) * ws, line.charAt(i));
-                put(null, Configuration.ABSTRACT_RET_PREFIX + 0, ptr + ws);
-                return ptr + ws;
+        int len = s.length();
+        long ptr = malloc((len + 1) * ws);
+        // The array is checked once and then written directly.
+        long index = getMemoryIndex(ptr);
+        getMemoryIndex(ptr + len * ws);
+        heap.store(index, len);
+        for (int i = 0; i < len; ++i)
+            heap.store(index + i + 1, s.charAt(i));
+        return ptr + ws;
+    }
+
+    /**
+     * Run a linearized function body from the frame's program counter until
+     * it returns, calls a function that runs on the frame stack, or runs
+     * out of steps.  The operand stack lives in {@link #operandStack}, above
+     * the frame's {@code sp}.
+     * @param frame the execution frame of the function
+     * @return whether the function returned
+     */
+    protected boolean execute(ExecutionFrame frame) {
+        final BytecodeFunction fn = frame.code;
+        final int[] code = fn.code;
+        final long[] operands = fn.operands;
+        final int[] slotA = fn.slotA;
+        final int[] slotB = fn.slotB;
+        final String[] names = fn.names;
+        long[] stack = operandStack;
+        int sp = frame.sp;
+        int pc = frame.pc;
+        long steps = this.steps;
+        while (true) {
+            if (steps == 0) {
+                frame.sp = sp;
+                frame.pc = pc;
+                this.steps = 0;
+                return false;
             }
-            case "_Igetchar_i": {
-                long result = inReader.read();
-                put(null, Configuration.ABSTRACT_RET_PREFIX + 0, result);
-                return result;
+            steps--;
+            if (debugLevel > 1)
+                System.out.println("Evaluating " + fn.disassemble(pc));
+            long operand = operands[pc];
+            switch (code[pc++]) {
+            case BytecodeFunction.CONST:
+                stack[sp++] = operand;
+                break;
+            case BytecodeFunction.TEMP:
+                stack[sp++] = frame.get((int) operand);
+                break;
+            case BytecodeFunction.GLOBAL:
+                stack[sp++] = globals.get((int) operand);
+                break;
+            case BytecodeFunction.MEM:
+                stack[sp - 1] = read(stack[sp - 1]);
+                break;
+            case BytecodeFunction.ADD:
+                sp--;
+                stack[sp - 1] += stack[sp];
+                break;
+            case BytecodeFunction.SUB:
+                sp--;
+                stack[sp - 1] -= stack[sp];
+                break;
+            case BytecodeFunction.MUL:
+                sp--;
+                stack[sp - 1] *= stack[sp];
+                break;
+            case BytecodeFunction.HMUL:
+                sp--;
+                stack[sp - 1] = BigInteger.valueOf(stack[sp - 1])
+                                          .multiply(BigInteger.valueOf(stack[sp]))
+                                          .shiftRight(64)
+                                          .longValue();
+                break;
+            case BytecodeFunction.DIV:
+                sp--;
+                if (stack[sp] == 0) throw new Trap("Division by zero!");
+                stack[sp - 1] /= stack[sp];
+                break;
+            case BytecodeFunction.MOD:
+                sp--;
+                if (stack[sp] == 0) throw new Trap("Division by zero!");
+                stack[sp - 1] %= stack[sp];
+                break;
+            case BytecodeFunction.AND:
+                sp--;
+                stack[sp - 1] &= stack[sp];
+                break;
+            case BytecodeFunction.OR:
+                sp--;
+                stack[sp - 1] |= stack[sp];
+                break;
+            case BytecodeFunction.XOR:
+                sp--;
+                stack[sp - 1] ^= stack[sp];
+                break;
+            case BytecodeFunction.LSHIFT:
+                sp--;
+                stack[sp - 1] <<= stack[sp];
+                break;
+            case BytecodeFunction.RSHIFT:
+                sp--;
+                stack[sp - 1] >>>= stack[sp];
+                break;
+            case BytecodeFunction.ARSHIFT:
+                sp--;
+                stack[sp - 1] >>= stack[sp];
+                break;
+            case BytecodeFunction.EQ:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] == stack[sp] ? 1 : 0;
+                break;
+            case BytecodeFunction.NEQ:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] != stack[sp] ? 1 : 0;
+                break;
+            case BytecodeFunction.LT:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] < stack[sp] ? 1 : 0;
+                break;
+            case BytecodeFunction.GT:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] > stack[sp] ? 1 : 0;
+                break;
+            case BytecodeFunction.LEQ:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] <= stack[sp] ? 1 : 0;
+                break;
+            case BytecodeFunction.GEQ:
+                sp--;
+                stack[sp - 1] = stack[sp - 1] >= stack[sp] ? 1 : 0;
+                break;
+            case BytecodeFunction.CALL: {
+                int argsCount = (int) operand;
+                long args[] = new long[argsCount];
+                sp -= argsCount;
+                System.arraycopy(stack, sp, args, 0, argsCount);
+                frame.sp = sp;
+                frame.pc = pc;
+                this.steps = steps;
+                if (beginCall(functions[(int) (operand >>> 32)], args))
+                    return false;
+                // The callee may have grown the operand stack, and used
+                // steps.
+                stack = operandStack;
+                steps = this.steps;
+                stack[sp++] = callResult;
+                break;
             }
-            case "_Ieof_b": {
-                long result = inReader.ready() ? 0 : 1;
-                put(null, Configuration.ABSTRACT_RET_PREFIX + 0, result);
-                return result;
+            case BytecodeFunction.CALL_INDIRECT: {
+                int argsCount = (int) operand;
+                long args[] = new long[argsCount];
+                sp -= argsCount;
+                System.arraycopy(stack, sp, args, 0, argsCount);
+                long target = stack[--sp];
+                frame.sp = sp;
+                frame.pc = pc;
+                this.steps = steps;
+                if (beginCall(callTarget((int) (operand >>> 32), target),
+                              args))
+                    return false;
+                stack = operandStack;
+                steps = this.steps;
+                stack[sp++] = callResult;
+                break;
             }
-                // conv declarations
-            case "_IunparseInt_aii": {
-                String line = String.valueOf(args[0]);
-                int len = line.length();
-                long ptr = malloc((len + 1) * ws);
-                store(ptr, len);
-                for (int i = 0; i < len; ++i)
-                    store(ptr + (i + 1) * ws, line.charAt(i));
-                put(null, Configuration.ABSTRACT_RET_PREFIX + 0, ptr + ws);
-                return ptr + ws;
+            case BytecodeFunction.STORE_TEMP: {
+                long r = stack[--sp];
+                if (debugLevel > 0)
+                    System.out.println("temp["
+                            + fn.layout.tempAt((int) operand) + "]=" + r);
+                frame.put((int) operand, r);
+                break;
             }
-            case "_IparseInt_t2ibai": {
-                StringBuffer buf = new StringBuffer();
-                long ptr = args[0], size = read(ptr - ws);
-                for (int i = 0; i < size; ++i)
-                    buf.append((char) read(ptr + i * ws));
-                int result = 0, success = 1;
-                try {
-                    result = Integer.parseInt(buf.toString());
-                }
-                catch (NumberFormatException e) {
-                    success = 0;
-                }
-                put(null, Configuration.ABSTRACT_RET_PREFIX + 0, result);
-                put(null, Configuration.ABSTRACT_RET_PREFIX + 1, success);
-                return result;
+            case BytecodeFunction.STORE_GLOBAL: {
+                long r = stack[--sp];
+                if (debugLevel > 0)
+                    System.out.println("temp[" + names[(int) operand] + "]="
+                            + r);
+                globals.put((int) operand, r);
+                break;
             }
-                // special declarations
-            case "_I_alloc_i": {
-                long result = malloc(args[0]);
-                put(null, Configuration.ABSTRACT_RET_PREFIX + 0, result);
-                return result;
+            case BytecodeFunction.STORE_MEM: {
+                long r = stack[--sp];
+                long addr = stack[--sp];
+                if (debugLevel > 0)
+                    System.out.println("mem[" + addr + "]=" + r);
+                store(addr, r);
+                break;
             }
-            case "_I_outOfBounds_p": {
-                throw new Trap("Out of bounds!");
+            case BytecodeFunction.POP:
+                sp--;
+                break;
+            case BytecodeFunction.JUMP:
+                pc = (int) operand;
+                break;
+            case BytecodeFunction.JUMP_INDIRECT: {
+                long target = stack[--sp];
+                pc = fn.pcOf(target);
+                if (pc < 0)
+                    throw new Trap("Invalid jump target " + target
+                            + " in function '" + fn.name() + "'!");
+                break;
             }
-                // other declarations
-            case "_Iassert_pb": {
-                if (args[0] != 1) throw new Trap("Assertion error!");
-                return 0;
+            case BytecodeFunction.CJUMP: {
+                long top = stack[--sp];
+                if (top == 1)
+                    pc = (int) operand;
+                else if (top != 0)
+                    throw new InternalCompilerError("Invalid value in CJUMP - expected 0/1, got "
+                            + top);
+                break;
             }
+            case BytecodeFunction.RETURN:
+                if (debugLevel > 1) System.out.println("Returning");
+                this.steps = steps;
+                return true;
+            case BytecodeFunction.TRAP:
+                throw new Trap(names[(int) operand]);
+            case BytecodeFunction.ADD_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) + operand);
+                break;
+            case BytecodeFunction.SUB_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) - operand);
+                break;
+            case BytecodeFunction.MUL_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) * operand);
+                break;
+            case BytecodeFunction.AND_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) & operand);
+                break;
+            case BytecodeFunction.OR_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) | operand);
+                break;
+            case BytecodeFunction.XOR_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) ^ operand);
+                break;
+            case BytecodeFunction.LSHIFT_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) << operand);
+                break;
+            case BytecodeFunction.RSHIFT_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) >>> operand);
+                break;
+            case BytecodeFunction.ARSHIFT_CONST:
+                storeFused(fn, frame, pc - 1,
+                           frame.get(slotB[pc - 1]) >> operand);
+                break;
+            case BytecodeFunction.LOAD_OFFSET:
+                storeFused(fn, frame, pc - 1,
+                           read(frame.get(slotB[pc - 1]) + operand));
+                break;
+            case BytecodeFunction.JUMP_EQ:
+                if (frame.get(slotA[pc - 1]) == frame.get(slotB[pc - 1]))
+                    pc = (int) operand;
+                break;
+            case BytecodeFunction.JUMP_NEQ:
+                if (frame.get(slotA[pc - 1]) != frame.get(slotB[pc - 1]))
+                    pc = (int) operand;
+                break;
+            case BytecodeFunction.JUMP_LT:
+                if (frame.get(slotA[pc - 1]) < frame.get(slotB[pc - 1]))
+                    pc = (int) operand;
+                break;
+            case BytecodeFunction.JUMP_GT:
+                if (frame.get(slotA[pc - 1]) > frame.get(slotB[pc - 1]))
+                    pc = (int) operand;
+                break;
+            case BytecodeFunction.JUMP_LEQ:
+                if (frame.get(slotA[pc - 1]) <= frame.get(slotB[pc - 1]))
+                    pc = (int) operand;
+                break;
+            case BytecodeFunction.JUMP_GEQ:
+                if (frame.get(slotA[pc - 1]) >= frame.get(slotB[pc - 1]))
+                    pc = (int) operand;
+                break;
             default:
-                throw new InternalCompilerError("Unsupported library function: "
-                        + name);
+                throw new InternalCompilerError("Invalid opcode "
+                        + code[pc - 1]);
             }
         }
-        catch (IOException e) {
-            throw new InternalCompilerError("I/O Exception in simulator");
-        }
+    }
+
+    /**
+     * Store the result of a superinstruction into its destination register.
+     * @param fn the function being executed
+     * @param frame the current execution frame
+     * @param pc the program counter of the superinstruction
+     * @param value the result
+     */
+    private void storeFused(BytecodeFunction fn, ExecutionFrame frame, int pc,
+            long value) {
+        int slot = fn.slotA[pc];
+        if (debugLevel > 0)
+            System.out.println("temp[" + fn.layout.tempAt(slot) + "]=" + value);
+        frame.put(slot, value);
+    }
+
+    /**
+     *
+     * @param target the address of a function, as produced by NAME
+     * @return the name of the function at {@code target}
+     */
+    protected String functionAt(long target) {
+        IRNode node = indexToInsn.get(target);
+        if (node instanceof IRFuncDecl) return ((IRFuncDecl) node).name();
+        if (node != null)
+            throw new InternalCompilerError("Call to a non-function instruction!");
+        throw new InternalCompilerError("Invalid function call (target '"
+                + target + "' is unknown)!");
     }
 
     protected void leave(ExecutionFrame frame) {
         if (frame.ip instanceof IRConst)
             exprStack.pushValue(((IRConst) frame.ip).value());
         else if (frame.ip instanceof IRTemp) {
-            String tempName = ((IRTemp) frame.ip).name();
-            exprStack.pushTemp(get(frame, tempName), tempName);
+            int binding = tempBindings[(int) frame.index];
+            if (binding < 0)
+                exprStack.pushTemp(globals.get(-1 - binding), binding);
+            else exprStack.pushTemp(frame.get(binding), binding);
         }
         else if (frame.ip instanceof IRBinOp) {
             long r = exprStack.popValue();
@@ -420,44 +1917,58 @@ public class IRSimulator {
             long args[] = new long[argsCount];
             for (int i = argsCount - 1; i >= 0; --i)
                 args[i] = exprStack.popValue();
-            StackItem target = exprStack.pop();
-            String targetName;
-            if (target.type == StackItem.Kind.NAME)
-                targetName = target.name;
-            else {
-                if (indexToInsn.containsKey(target.value)) {
-                    IRNode node = indexToInsn.get(target.value);
-                    if (node instanceof IRFuncDecl)
-                        targetName = ((IRFuncDecl) node).name();
-                    else throw new InternalCompilerError("Call to a non-function instruction!");
-                }
-                else throw new InternalCompilerError("Invalid function call '"
-                        + frame.ip + "' (target '" + target.value
-                        + "' is unknown)!");
+            int target = exprStack.pop();
+            FunctionHandle callee;
+            if (exprStack.kind(target) == ExprStack.NAME) {
+                int symbol = exprStack.id(target);
+                callee = symbolFunctions[symbol];
+                if (callee == null)
+                    throw new InternalCompilerError("Tried to call an unknown function: '"
+                            + symbols.get(symbol) + "'");
             }
+            else callee = callTarget((int) frame.index,
+                                     exprStack.value(target));
 
-            long retVal = call(targetName, args);
-            exprStack.pushValue(retVal);
+            // A pending callee is pushed by the dispatch loop, which
+            // delivers its result when it returns.
+            if (!beginCall(callee, args)) exprStack.pushValue(callResult);
         }
         else if (frame.ip instanceof IRName) {
-            String name = ((IRName) frame.ip).name();
-            exprStack.pushName(libraryFunctions.contains(name)
-                    ? -1 : findLabel(name), name);
+            int symbol = nameSymbols[(int) frame.index];
+            long addr = symbolAddrs[symbol];
+            if (addr == PreparedProgram.UNRESOLVED)
+                throw new Trap("Could not find label '" + symbols.get(symbol)
+                        + "'!");
+            exprStack.pushName(addr, symbol);
         }
         else if (frame.ip instanceof IRMove) {
             long r = exprStack.popValue();
-            StackItem stackItem = exprStack.pop();
-            switch (stackItem.type) {
-            case MEM:
+            int top = exprStack.pop();
+            switch (exprStack.kind(top)) {
+            case ExprStack.MEM: {
+                long addr = exprStack.addr(top);
                 if (debugLevel > 0)
-                    System.out.println("mem[" + stackItem.addr + "]=" + r);
-                store(stackItem.addr, r);
+                    System.out.println("mem[" + addr + "]=" + r);
+                store(addr, r);
                 break;
-            case TEMP:
-                if (debugLevel > 0)
-                    System.out.println("temp[" + stackItem.temp + "]=" + r);
-                put(frame, stackItem.temp, r);
+            }
+            case ExprStack.TEMP: {
+                int id = exprStack.id(top);
+                if (ExprStack.isGlobal(id)) {
+                    int code = ExprStack.globalCode(id);
+                    if (debugLevel > 0)
+                        System.out.println("temp[" + globals.nameOf(code)
+                                + "]=" + r);
+                    globals.put(code, r);
+                }
+                else {
+                    if (debugLevel > 0)
+                        System.out.println("temp[" + frame.layout.tempAt(id)
+                                + "]=" + r);
+                    frame.put(id, r);
+                }
                 break;
+            }
             default:
                 throw new InternalCompilerError("Invalid MOVE!");
             }
@@ -494,20 +2005,176 @@ public class IRSimulator {
         return nameToIndex.get(name);
     }
 
+    /**
+     * Exposes this simulator to code generated by {@link JitCompiler}.
+     */
+    private class JitBridge implements JitRuntime {
+        @Override
+        public long read(long addr) {
+            return IRSimulator.this.read(addr);
+        }
+
+        @Override
+        public void store(long addr, long value) {
+            IRSimulator.this.store(addr, value);
+        }
+
+        @Override
+        public long getGlobal(int reg) {
+            return globals.get(reg);
+        }
+
+        @Override
+        public void putGlobal(int reg, long value) {
+            globals.put(reg, value);
+        }
+
+        @Override
+        public boolean enterDirect(long[] args) {
+            if (compiledDepth >= MAX_COMPILED_DEPTH) {
+                deferredArgs = args;
+                return false;
+            }
+            compiledDepth++;
+            for (int i = 0; i < args.length; ++i)
+                globals.putArg(i, args[i]);
+            return true;
+        }
+
+        @Override
+        public void leaveDirect() {
+            compiledDepth--;
+        }
+
+        @Override
+        public long callDeferred(int function) {
+            long[] args = deferredArgs;
+            deferredArgs = null;
+            return IRSimulator.this.call(functions[function], args);
+        }
+
+        @Override
+        public long call(int function, long[] args) {
+            return IRSimulator.this.call(functions[function], args);
+        }
+
+        @Override
+        public long callIndirect(int site, long target, long[] args) {
+            return IRSimulator.this.call(callTarget(site, target), args);
+        }
+
+        @Override
+        public long garbage() {
+            return r.nextLong();
+        }
+
+        @Override
+        public long hmul(long l, long r) {
+            return BigInteger.valueOf(l)
+                             .multiply(BigInteger.valueOf(r))
+                             .shiftRight(64)
+                             .longValue();
+        }
+
+        @Override
+        public RuntimeException trap(String message) {
+            return new Trap(message);
+        }
+
+        @Override
+        public RuntimeException invalidCondition(long value) {
+            return new InternalCompilerError("Invalid value in CJUMP - expected 0/1, got "
+                    + value);
+        }
+    }
+
     /**
      * Holds the instruction pointer and temporary registers
      * within an execution frame.
      */
-    private class ExecutionFrame {
+    protected class ExecutionFrame {
         /** instruction pointer */
         public IRNode ip;
 
-        /** local registers (register name -> value) */
-        private Map<String, Long> regs;
+        /** slot assignment of the local registers */
+        private FrameLayout layout;
 
-        public ExecutionFrame(IRNode ip) {
+        /** local registers (slot -> value) */
+        private long[] regs;
+
+        /** bitset of the slots that have been written */
+        private long[] written;
+
+        /** the function being executed */
+        FunctionHandle function;
+
+        /** the function body, if the frame runs bytecode */
+        BytecodeFunction code;
+
+        /** return address of a bytecode frame */
+        int pc;
+
+        /**
+         * top of the operand stack of a suspended bytecode frame, or the
+         * base of the operand stacks of callees of a tree frame
+         */
+        int sp;
+
+        /** size of the expression stack when the frame was entered */
+        int stackMark;
+
+        /** address of the instruction being executed by the tree walker */
+        long index;
+
+        /** whether a back edge made the function hot, in tiered mode */
+        boolean hot;
+
+        public ExecutionFrame(IRNode ip, FrameLayout layout) {
+            this.ip = ip;
+            this.layout = layout;
+            regs = new long[layout.size()];
+            written = new long[(layout.size() + 63) >>> 6];
+        }
+
+        /**
+         * Visit the values of the written registers
+         * @param visitor the visitor
+         */
+        void forEachRegister(LongConsumer visitor) {
+            for (int slot = 0; slot < layout.size(); slot++)
+                if ((written[slot >>> 6] & 1L << slot) != 0)
+                    visitor.accept(regs[slot]);
+        }
+
+        /**
+         * Prepare a pooled frame for another call.  No register counts as
+         * written afterwards, so values of the previous call cannot leak.
+         * @param ip the function being called
+         * @param layout slot assignment of the function's registers
+         */
+        void reset(IRNode ip, FrameLayout layout) {
             this.ip = ip;
-            regs = new HashMap<>();
+            this.layout = layout;
+            int size = layout.size();
+            if (regs.length < size) {
+                regs = new long[size];
+                written = new long[(size + 63) >>> 6];
+            }
+            else Arrays.fill(written, 0, (size + 63) >>> 6, 0);
+            function = null;
+            code = null;
+            pc = 0;
+            sp = 0;
+            stackMark = 0;
+            hot = false;
+        }
+
+        /**
+         *
+         * @return the simulator this frame belongs to
+         */
+        public IRSimulator simulator() {
+            return IRSimulator.this;
         }
 
         /**
@@ -516,12 +2183,23 @@ public class IRSimulator {
          * @return the value at the given register
          */
         public long get(String tempName) {
-            if (!regs.containsKey(tempName)) {
+            return get(slotOf(tempName));
+        }
+
+        /**
+         * Fetch the value at the given slot
+         * @param slot slot of the register
+         * @return the value at the given slot
+         */
+        public long get(int slot) {
+            long bit = 1L << slot;
+            if ((written[slot >>> 6] & bit) == 0) {
                 /* Referencing a temp before having written to it - initialize
                    with garbage */
-                put(tempName, r.nextLong());
+                written[slot >>> 6] |= bit;
+                regs[slot] = r.nextLong();
             }
-            return regs.get(tempName);
+            return regs[slot];
         }
 
         /**
@@ -530,7 +2208,26 @@ public class IRSimulator {
          * @param value value to be stored
          */
         public void put(String tempName, long value) {
-            regs.put(tempName, value);
+            put(slotOf(tempName), value);
+        }
+
+        /**
+         * Store a value into the given slot
+         * @param slot slot of the register
+         * @param value value to be stored
+         */
+        public void put(int slot, long value) {
+            written[slot >>> 6] |= 1L << slot;
+            regs[slot] = value;
+        }
+
+        public int slotOf(String tempName) {
+            int slot = layout.slotOf(tempName);
+            if (slot < 0)
+                throw new InternalCompilerError("Register '" + tempName
+                        + "' is not used in function '" + layout.name()
+                        + "'");
+            return slot;
         }
 
         /**
@@ -539,17 +2236,30 @@ public class IRSimulator {
          */
         public boolean advance() {
             long index = insnToIndex.get(ip);
+            this.index = index;
+            if (profiler != null) profiler.step(index);
             if (debugLevel > 1) System.out.println("Evaluating " + ip.label());
             IRNode backupIP = ip;
             leave(this);
 
             if (ip == null) return false; /* RETURN */
 
-            if (ip != backupIP) /* A jump was performed */
+            if (pendingCallee != null) /* A call is pending */
                 return true;
 
+            if (ip != backupIP) { /* A jump was performed */
+                TierProfile profile =
+                        function == null ? null : function.profile;
+                if (profile != null && insnToIndex.get(ip) <= index
+                        && (profile.countBackEdge() >= backEdgeThreshold
+                                || profile.isPromoted()))
+                    hot = true;
+                return true;
+            }
+
             ip = indexToInsn.get(index + 1);
-            if (ip == null)
+            // The body of a function ends where the next function begins.
+            if (ip == null || ip instanceof IRFuncDecl)
                 throw new Trap("No next instruction.  Forgot RETURN?");
             return true;
         }
@@ -569,86 +2279,295 @@ public class IRSimulator {
      * a number of single-word values (e.g., to evaluate binary expressions).
      * This also keeps track of whether a value was created by a TEMP
      * or MEM, or NAME reference, which is useful when executing moves.
+     *
+     * Items are stored in parallel primitive arrays, so pushing and popping
+     * do not allocate.  {@link #pop()} returns the position of the popped
+     * item, whose fields remain readable until the next push.
      */
-    private static class ExprStack {
+    protected static class ExprStack {
+        /* item kinds */
+        public static final byte COMPUTED = 0;
+        public static final byte MEM = 1;
+        public static final byte TEMP = 2;
+        public static final byte NAME = 3;
+
+        /** values of the items */
+        private long[] values;
+        /** kinds of the items */
+        private byte[] kinds;
+        /** addresses of MEM items */
+        private long[] addrs;
+        /**
+         * register of TEMP items (a slot, or an encoded global register
+         * code, see {@link #globalId(int)}), or symbol of NAME items
+         */
+        private int[] ids;
+        /** number of items on the stack */
+        private int size;
 
-        private Stack<StackItem> stack;
+        /** the debug level of the simulator */
+        int debugLevel;
 
         public ExprStack() {
-            stack = new Stack<>();
+            values = new long[16];
+            kinds = new byte[16];
+            addrs = new long[16];
+            ids = new int[16];
+        }
+
+        /**
+         *
+         * @param code the code of a global register
+         * @return the TEMP item id for the register
+         */
+        public static int globalId(int code) {
+            return -1 - code;
+        }
+
+        public static boolean isGlobal(int id) {
+            return id < 0;
+        }
+
+        public static int globalCode(int id) {
+            return -1 - id;
         }
 
         public long popValue() {
-            long value = stack.pop().value;
+            long value = values[--size];
             if (debugLevel > 1) System.out.println("Popping value " + value);
             return value;
         }
 
-        public StackItem pop() {
-            return stack.pop();
+        /**
+         * Pop an item
+         * @return the position of the popped item
+         */
+        public int pop() {
+            return --size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        /**
+         * Pop the items above the given number of items
+         * @param size the number of items to keep
+         */
+        void truncate(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Visit the values and addresses of the items
+         * @param visitor the visitor
+         */
+        void forEach(LongConsumer visitor) {
+            for (int i = 0; i < size; i++) {
+                visitor.accept(values[i]);
+                if (kinds[i] == MEM) visitor.accept(addrs[i]);
+            }
+        }
+
+        public long value(int item) {
+            return values[item];
+        }
+
+        public byte kind(int item) {
+            return kinds[item];
+        }
+
+        public long addr(int item) {
+            return addrs[item];
+        }
+
+        public int id(int item) {
+            return ids[item];
         }
 
         public void pushAddr(long value, long addr) {
             if (debugLevel > 1)
                 System.out.println("Pushing MEM " + value + " (" + addr + ")");
-            stack.push(new StackItem(value, addr));
+            int i = push(value, MEM);
+            addrs[i] = addr;
         }
 
-        public void pushTemp(long value, String temp) {
+        public void pushTemp(long value, int id) {
             if (debugLevel > 1)
-                System.out.println("Pushing TEMP " + value + " (" + temp + ")");
-            stack.push(new StackItem(StackItem.Kind.TEMP, value, temp));
+                System.out.println("Pushing TEMP " + value + " (" + id + ")");
+            int i = push(value, TEMP);
+            ids[i] = id;
         }
 
-        public void pushName(long value, String name) {
+        public void pushName(long value, int id) {
             if (debugLevel > 1)
-                System.out.println("Pushing NAME " + value + " (" + name + ")");
-            stack.push(new StackItem(StackItem.Kind.NAME, value, name));
+                System.out.println("Pushing NAME " + value + " (" + id + ")");
+            int i = push(value, NAME);
+            ids[i] = id;
         }
 
         public void pushValue(long value) {
             if (debugLevel > 1) System.out.println("Pushing value " + value);
-            stack.push(new StackItem(value));
+            push(value, COMPUTED);
+        }
+
+        /**
+         * Push an item, growing the arrays if they are full
+         * @return the position of the item; arrays must be indexed with it
+         *          only after the call, which may replace them
+         */
+        private int push(long value, byte kind) {
+            if (size == values.length) {
+                int capacity = size * 2;
+                values = Arrays.copyOf(values, capacity);
+                kinds = Arrays.copyOf(kinds, capacity);
+                addrs = Arrays.copyOf(addrs, capacity);
+                ids = Arrays.copyOf(ids, capacity);
+            }
+            values[size] = value;
+            kinds[size] = kind;
+            return size++;
         }
     }
 
-    public static class StackItem {
-        public enum Kind {
-            COMPUTED, MEM, TEMP, NAME;
+    /**
+     * An error of the simulated program.  Traps are part of the program's
+     * behavior rather than failures of the simulator, so they carry no
+     * stack trace, which would be costly to fill in for deep simulations
+     * and tell nothing about the program.
+     */
+    public static class Trap extends RuntimeException {
+        private static final long serialVersionUID =
+                SerialVersionUID.generate();
+
+        public Trap(String message) {
+            super(message, null, false, false);
         }
+    };
 
-        public Kind type;
-        public long value;
-        public long addr;
-        public String temp;
-        public String name;
+    /**
+     * The outcome of a call by {@link IRSimulator#tryCall}
+     */
+    public static final class ExecutionResult {
+        private final Status status;
+        private final Trap trap;
+        private final long[] returnValues;
+
+        ExecutionResult(Status status, Trap trap, long[] returnValues) {
+            this.status = status;
+            this.trap = trap;
+            this.returnValues = returnValues;
+        }
 
-        public StackItem(long value) {
-            type = Kind.COMPUTED;
-            this.value = value;
+        /**
+         *
+         * @return {@link Status#FINISHED} if the call returned, or
+         *          {@link Status#TRAPPED}
+         */
+        public Status status() {
+            return status;
         }
 
-        public StackItem(long value, long addr) {
-            type = Kind.MEM;
-            this.value = value;
-            this.addr = addr;
+        /**
+         *
+         * @return whether the call returned
+         */
+        public boolean finished() {
+            return status == Status.FINISHED;
         }
 
-        public StackItem(Kind type, long value, String string) {
-            this.type = type;
-            this.value = value;
-            if (type == Kind.TEMP)
-                temp = string;
-            else name = string;
+        /**
+         *
+         * @return the trap that ended the call, or null
+         */
+        public Trap trap() {
+            return trap;
         }
-    };
 
-    public static class Trap extends RuntimeException {
+        /**
+         *
+         * @return the reason of the trap that ended the call, or null
+         */
+        public String reason() {
+            return trap == null ? null : trap.getMessage();
+        }
+
+        /**
+         *
+         * @return the value of register
+         *          {@link Configuration#ABSTRACT_RET_PREFIX} index 0
+         */
+        public long returnValue() {
+            return returnValue(0);
+        }
+
+        /**
+         *
+         * @param index the number of a return register
+         * @return the value of register
+         *          {@link Configuration#ABSTRACT_RET_PREFIX} {@code index}
+         */
+        public long returnValue(int index) {
+            if (returnValues == null)
+                throw new IllegalStateException("The call trapped: "
+                        + trap.getMessage());
+            if (index < 0 || index >= returnValues.length)
+                throw new IndexOutOfBoundsException("No return register "
+                        + index);
+            return returnValues[index];
+        }
+
+        /**
+         *
+         * @return the number of return registers written when the call
+         *          returned, including ones written by earlier calls, or 0
+         *          if it trapped
+         */
+        public int returnCount() {
+            return returnValues == null ? 0 : returnValues.length;
+        }
+
+        @Override
+        public String toString() {
+            return trap == null ? status + ": " + Arrays.toString(returnValues)
+                    : status + ": " + trap.getMessage();
+        }
+    }
+
+    /**
+     * Limits on the resources a simulation may use
+     */
+    public enum Limit {
+        /** steps, see {@link IRSimulator#setStepLimit(long)} */
+        STEPS,
+        /** allocated words, see {@link IRSimulator#setAllocationLimit(long)} */
+        MEMORY,
+        /** call depth, see {@link IRSimulator#setMaxDepth(int)} */
+        DEPTH,
+        /** time, see {@link IRSimulator#setTimeLimit(long)} */
+        TIME;
+    }
+
+    /**
+     * A trap raised when a simulation exceeds one of its limits
+     */
+    public static class LimitExceeded extends Trap {
         private static final long serialVersionUID =
                 SerialVersionUID.generate();
 
-        public Trap(String message) {
+        private final Limit limit;
+
+        public LimitExceeded(Limit limit, String message) {
             super(message);
+            this.limit = limit;
         }
-    };
+
+        /**
+         *
+         * @return the limit that was exceeded
+         */
+        public Limit limit() {
+            return limit;
+        }
+    }
 }
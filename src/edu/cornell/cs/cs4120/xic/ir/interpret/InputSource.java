@@ -0,0 +1,191 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The source of the input of a simulated program.
+ *
+ * Input is read as bytes, from a channel or from a buffer that holds all of
+ * it, and decoded in bulk with the default charset.  Files can be mapped
+ * into memory rather than read.
+ */
+public class InputSource {
+    private static final int CAPACITY = 8192;
+
+    /** the channel to read from, or null if {@link #bytes} holds all input */
+    private final ReadableByteChannel channel;
+
+    /** bytes not decoded yet */
+    private final ByteBuffer bytes;
+
+    private final CharsetDecoder decoder;
+
+    /** characters decoded and not read yet */
+    private final CharBuffer chars;
+
+    /** whether {@link #channel} has no more bytes */
+    private boolean endOfChannel;
+
+    /** whether all input has been decoded */
+    private boolean decoded;
+
+    /** the line being read by {@link #readLine()} */
+    private final StringBuilder line;
+
+    private InputSource(ReadableByteChannel channel, ByteBuffer bytes) {
+        this.channel = channel;
+        this.bytes = bytes;
+        decoder = Charset.defaultCharset()
+                         .newDecoder()
+                         .onMalformedInput(CodingErrorAction.REPLACE)
+                         .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars = CharBuffer.allocate(CAPACITY);
+        chars.flip();
+        line = new StringBuilder();
+    }
+
+    /**
+     *
+     * @return a source reading standard input
+     */
+    public static InputSource console() {
+        return of(System.in);
+    }
+
+    /**
+     * @param in the stream to read from
+     * @return a source reading {@code in}
+     */
+    public static InputSource of(InputStream in) {
+        return of(Channels.newChannel(in));
+    }
+
+    /**
+     * @param channel a blocking channel to read from
+     * @return a source reading {@code channel}
+     */
+    public static InputSource of(ReadableByteChannel channel) {
+        ByteBuffer bytes = ByteBuffer.allocate(CAPACITY);
+        bytes.flip();
+        return new InputSource(channel, bytes);
+    }
+
+    /**
+     * @param input the input, encoded with the default charset
+     * @return a source reading {@code input}
+     */
+    public static InputSource of(byte[] input) {
+        return new InputSource(null, ByteBuffer.wrap(input));
+    }
+
+    /**
+     * @param input the input
+     * @return a source reading {@code input}
+     */
+    public static InputSource of(String input) {
+        return of(input.getBytes(Charset.defaultCharset()));
+    }
+
+    /**
+     * @param file a file, mapped into memory unless it is larger than 2 GB
+     * @return a source reading {@code file}
+     * @throws IOException if opening the file fails
+     */
+    public static InputSource map(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        if (channel.size() > Integer.MAX_VALUE) return of(channel);
+        try {
+            // The mapping stays valid after the channel is closed.
+            return new InputSource(null,
+                                   channel.map(FileChannel.MapMode.READ_ONLY,
+                                               0,
+                                               channel.size()));
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read a character
+     * @return the character, or -1 at the end of the input
+     * @throws IOException if reading fails
+     */
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return chars.get();
+    }
+
+    /**
+     * Read a line, terminated by a line feed, a carriage return, or a
+     * carriage return followed by a line feed
+     * @return the contents of the line, valid until the next read, or null at
+     *          the end of the input
+     * @throws IOException if reading fails
+     */
+    public CharSequence readLine() throws IOException {
+        if (!fill()) return null;
+        line.setLength(0);
+        char[] array = chars.array();
+        while (fill()) {
+            int start = chars.position();
+            int end = chars.limit();
+            for (int i = start; i < end; i++) {
+                char c = array[i];
+                if (c != '\n' && c != '\r') continue;
+                line.append(array, start, i - start);
+                chars.position(i + 1);
+                if (c == '\r' && fill() && chars.get(chars.position()) == '\n')
+                    chars.get();
+                return line;
+            }
+            line.append(array, start, end - start);
+            chars.position(end);
+        }
+        return line;
+    }
+
+    /**
+     *
+     * @return whether all input has been read
+     * @throws IOException if reading fails
+     */
+    public boolean atEnd() throws IOException {
+        return !fill();
+    }
+
+    /**
+     * Decode more characters if all decoded ones have been read
+     * @return false if there are no more characters
+     */
+    private boolean fill() throws IOException {
+        while (!chars.hasRemaining()) {
+            if (decoded) return false;
+            chars.clear();
+            if (channel != null && !endOfChannel) {
+                bytes.compact();
+                if (channel.read(bytes) < 0) endOfChannel = true;
+                bytes.flip();
+            }
+            boolean last = channel == null || endOfChannel;
+            decoder.decode(bytes, chars, last);
+            if (last && !bytes.hasRemaining()) {
+                decoder.flush(chars);
+                decoded = true;
+            }
+            chars.flip();
+        }
+        return true;
+    }
+}
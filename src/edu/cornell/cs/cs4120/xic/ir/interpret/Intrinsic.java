@@ -0,0 +1,22 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.IOException;
+
+/**
+ * A function implemented by the simulator rather than by IR code.
+ *
+ * Intrinsics are registered in an {@link IntrinsicRegistry} under the name
+ * that IR code calls them by, and are bound to their call sites when the
+ * simulator is prepared.
+ */
+@FunctionalInterface
+public interface Intrinsic {
+    /**
+     * Run the intrinsic
+     * @param sim the simulator running the calling code
+     * @param args arguments to the function call
+     * @return the value of the call expression
+     * @throws IOException if reading input fails
+     */
+    long invoke(IRSimulator sim, long[] args) throws IOException;
+}
@@ -0,0 +1,140 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The set of intrinsics available to a simulator, by name.
+ *
+ * {@link #standard()} provides the Xi runtime library.  Further intrinsics,
+ * e.g., math or string helpers, can be registered before the registry is
+ * handed to a simulator.  A registered intrinsic takes precedence over an
+ * IR function of the same name.
+ */
+public class IntrinsicRegistry {
+    private final Map<String, Intrinsic> intrinsics;
+
+    /**
+     * Create an empty registry.
+     */
+    public IntrinsicRegistry() {
+        intrinsics = new LinkedHashMap<>();
+    }
+
+    /**
+     * Create a copy of a registry.
+     * @param other the registry to be copied
+     */
+    public IntrinsicRegistry(IntrinsicRegistry other) {
+        intrinsics = new LinkedHashMap<>(other.intrinsics);
+    }
+
+    /**
+     * Register an intrinsic, replacing any intrinsic of the same name.
+     * @param name the name IR code calls the intrinsic by
+     * @param intrinsic the implementation
+     * @return this registry
+     */
+    public IntrinsicRegistry register(String name, Intrinsic intrinsic) {
+        intrinsics.put(name, intrinsic);
+        return this;
+    }
+
+    /**
+     *
+     * @return the intrinsic registered as {@code name}, or null
+     */
+    public Intrinsic lookup(String name) {
+        return intrinsics.get(name);
+    }
+
+    public boolean contains(String name) {
+        return intrinsics.containsKey(name);
+    }
+
+    /**
+     *
+     * @return the names of the registered intrinsics, in registration order
+     */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(intrinsics.keySet());
+    }
+
+    /**
+     *
+     * @return a new registry holding the Xi runtime library
+     */
+    public static IntrinsicRegistry standard() {
+        final int ws = Configuration.WORD_SIZE;
+        IntrinsicRegistry r = new IntrinsicRegistry();
+        // io declarations
+        r.register("_Iprint_pai", (sim, args) -> {
+            OutputSink out = sim.output();
+            long ptr = args[0], size = sim.read(ptr - ws);
+            for (long i = 0; i < size; ++i)
+                out.print((char) sim.read(ptr + i * ws));
+            return 0;
+        });
+        r.register("_Iprintln_pai", (sim, args) -> {
+            OutputSink out = sim.output();
+            long ptr = args[0], size = sim.read(ptr - ws);
+            for (long i = 0; i < size; ++i)
+                out.print((char) sim.read(ptr + i * ws));
+            out.println();
+            return 0;
+        });
+        // Show pending output, e.g., a prompt, before waiting for input.
+        r.register("_Ireadln_ai", (sim, args) -> {
+            sim.output().flush();
+            CharSequence line = sim.input().readLine();
+            // At the end of the input, read an empty line.
+            if (line == null) line = "";
+            return sim.setReturn(0, sim.allocString(line));
+        });
+        r.register("_Igetchar_i", (sim, args) -> {
+            sim.output().flush();
+            return sim.setReturn(0, sim.input().read());
+        });
+        r.register("_Ieof_b", (sim, args) -> {
+            sim.output().flush();
+            return sim.setReturn(0, sim.input().atEnd() ? 1 : 0);
+        });
+        // conv declarations
+        r.register("_IparseInt_t2ibai", (sim, args) -> {
+            StringBuffer buf = new StringBuffer();
+            long ptr = args[0], size = sim.read(ptr - ws);
+            for (int i = 0; i < size; ++i)
+                buf.append((char) sim.read(ptr + i * ws));
+            int result = 0, success = 1;
+            try {
+                result = Integer.parseInt(buf.toString());
+            }
+            catch (NumberFormatException e) {
+                success = 0;
+            }
+            sim.setReturn(1, success);
+            return sim.setReturn(0, result);
+        });
+        r.register("_IunparseInt_aii",
+                   (sim, args) -> sim.setReturn(0,
+                                                sim.allocString(String.valueOf(args[0]))));
+        // special declarations
+        r.register("_I_alloc_i",
+                   (sim, args) -> sim.setReturn(0, sim.malloc(args[0])));
+        r.register("_I_free_pi", (sim, args) -> {
+            sim.free(args[0]);
+            return 0;
+        });
+        r.register("_I_outOfBounds_p", (sim, args) -> {
+            throw new IRSimulator.Trap("Out of bounds!");
+        });
+        // other declarations
+        r.register("_Iassert_pb", (sim, args) -> {
+            if (args[0] != 1) throw new IRSimulator.Trap("Assertion error!");
+            return 0;
+        });
+        return r;
+    }
+}
@@ -0,0 +1,14 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * Entry point of a class generated by {@link JitCompiler}.
+ */
+public interface JitCode {
+    /**
+     * Run a compiled function
+     * @param function index of the function within the generated class
+     * @param rt the simulator services
+     * @return the value of the first return register
+     */
+    long run(int function, JitRuntime rt);
+}
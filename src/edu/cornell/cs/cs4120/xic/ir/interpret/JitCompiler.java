@@ -0,0 +1,617 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.cornell.cs.cs4120.util.InternalCompilerError;
+import edu.cornell.cs.cs4120.xic.ir.IRBinOp;
+import edu.cornell.cs.cs4120.xic.ir.IRCJump;
+import edu.cornell.cs.cs4120.xic.ir.IRCall;
+import edu.cornell.cs.cs4120.xic.ir.IRConst;
+import edu.cornell.cs.cs4120.xic.ir.IRESeq;
+import edu.cornell.cs.cs4120.xic.ir.IRExp;
+import edu.cornell.cs.cs4120.xic.ir.IRExpr;
+import edu.cornell.cs.cs4120.xic.ir.IRFuncDecl;
+import edu.cornell.cs.cs4120.xic.ir.IRJump;
+import edu.cornell.cs.cs4120.xic.ir.IRLabel;
+import edu.cornell.cs.cs4120.xic.ir.IRMem;
+import edu.cornell.cs.cs4120.xic.ir.IRMove;
+import edu.cornell.cs.cs4120.xic.ir.IRName;
+import edu.cornell.cs.cs4120.xic.ir.IRNode;
+import edu.cornell.cs.cs4120.xic.ir.IRReturn;
+import edu.cornell.cs.cs4120.xic.ir.IRSeq;
+import edu.cornell.cs.cs4120.xic.ir.IRStmt;
+import edu.cornell.cs.cs4120.xic.ir.IRTemp;
+import edu.cornell.cs.cs4120.xic.ir.interpret.ClassFileWriter.Label;
+import edu.cornell.cs.cs4120.xic.ir.interpret.ClassFileWriter.MethodWriter;
+import edu.cornell.cs.cs4120.xic.ir.interpret.ClassFileWriter.TooLargeException;
+
+/**
+ * Compiles IR functions into a JVM class, so that HotSpot can compile them
+ * to native code.
+ *
+ * Every function becomes a static method taking a {@link JitRuntime}.  Local
+ * registers become JVM locals, CJUMP and JUMP become branches, and calls to
+ * functions compiled into the same class become direct invocations.
+ * Everything else (the heap, global registers, library functions and other
+ * functions) is reached through the runtime.
+ *
+ * A function cannot be compiled if it jumps to a computed address, if an
+ * ESEQ in it contains control flow, or if a MOVE in it targets anything but
+ * TEMP or MEM.  Local registers are initialized with garbage on entry rather
+ * than on first read.
+ */
+public class JitCompiler {
+    private static final String RUNTIME =
+            "edu/cornell/cs/cs4120/xic/ir/interpret/JitRuntime";
+    private static final String CODE =
+            "edu/cornell/cs/cs4120/xic/ir/interpret/JitCode";
+    private static final String FUNC_DESC = "(L" + RUNTIME + ";)J";
+    private static final String STRING = "Ljava/lang/String;";
+    private static final String EXCEPTION = "Ljava/lang/RuntimeException;";
+
+    /** counter for naming generated classes */
+    private static final AtomicInteger classCount = new AtomicInteger();
+
+    private Map<IRNode, Long> insnToIndex;
+    private Map<String, Long> nameToIndex;
+    private Set<String> libraryFunctions;
+    private Map<String, Integer> functionIds;
+
+    /* state for the class being generated */
+    private String className;
+    private Map<String, Integer> methodIndices;
+
+    /* state for the function being compiled */
+    private MethodWriter m;
+    private FrameLayout layout;
+    private int scratch;
+    private Map<String, Label> labels;
+    private Map<String, Label> trapLabels;
+
+    /**
+     * @param insnToIndex map from instruction to address
+     * @param nameToIndex map from labeled name to address
+     * @param libraryFunctions names of functions implemented by the simulator
+     * @param functionIds map from function name to id in the simulator's
+     *          function table
+     */
+    public JitCompiler(Map<IRNode, Long> insnToIndex,
+            Map<String, Long> nameToIndex, Set<String> libraryFunctions,
+            Map<String, Integer> functionIds) {
+        this.insnToIndex = insnToIndex;
+        this.nameToIndex = nameToIndex;
+        this.libraryFunctions = libraryFunctions;
+        this.functionIds = functionIds;
+    }
+
+    /**
+     * Compile functions into a single class.
+     * @param funcs the functions to be compiled
+     * @param layouts map from function name to the slot assignment of its
+     *          local registers
+     * @return map from function name to compiled function, for those
+     *          functions that could be compiled
+     */
+    public Map<String, JitFunction> compile(Collection<IRFuncDecl> funcs,
+            Map<String, FrameLayout> layouts) {
+        List<IRFuncDecl> eligible = new ArrayList<>();
+        for (IRFuncDecl fDecl : funcs)
+            if (canCompile(fDecl.body(), false)) eligible.add(fDecl);
+        if (eligible.isEmpty()) return Collections.emptyMap();
+
+        try {
+            return generate(eligible, layouts);
+        }
+        catch (TooLargeException e) {
+            // Some function exceeds the limits of the class file format.
+            // Compile the functions separately to find out which.
+            Map<String, JitFunction> result = new HashMap<>();
+            for (IRFuncDecl fDecl : eligible) {
+                try {
+                    result.putAll(generate(Collections.singletonList(fDecl),
+                                           layouts));
+                }
+                catch (TooLargeException e1) {
+                    // Leave it to the interpreter.
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Check whether a statement can be compiled.
+     * @param stmt the statement
+     * @param straightLine whether the statement must be free of control flow
+     */
+    private boolean canCompile(IRStmt stmt, boolean straightLine) {
+        if (stmt instanceof IRSeq) {
+            for (IRStmt s : ((IRSeq) stmt).stmts())
+                if (!canCompile(s, straightLine)) return false;
+            return true;
+        }
+        if (stmt instanceof IRMove) {
+            IRExpr target = ((IRMove) stmt).target();
+            if (!(target instanceof IRTemp) && !(target instanceof IRMem))
+                return false;
+            return canCompile(target) && canCompile(((IRMove) stmt).expr());
+        }
+        if (stmt instanceof IRExp) return canCompile(((IRExp) stmt).expr());
+        if (straightLine) return false;
+        if (stmt instanceof IRJump)
+            return ((IRJump) stmt).target() instanceof IRName;
+        if (stmt instanceof IRCJump) return canCompile(((IRCJump) stmt).expr());
+        return stmt instanceof IRLabel || stmt instanceof IRReturn;
+    }
+
+    private boolean canCompile(IRNode n) {
+        if (n instanceof IRESeq)
+            return canCompile(((IRESeq) n).stmt(), true)
+                    && canCompile(((IRESeq) n).expr());
+        for (IRNode child : n.children)
+            if (!canCompile(child)) return false;
+        return true;
+    }
+
+    private Map<String, JitFunction> generate(List<IRFuncDecl> funcs,
+            Map<String, FrameLayout> layouts) {
+        className = "xic/jit/Compiled" + classCount.incrementAndGet();
+        methodIndices = new HashMap<>();
+        for (int i = 0; i < funcs.size(); i++)
+            methodIndices.put(funcs.get(i).name(), i);
+
+        ClassFileWriter cw =
+                new ClassFileWriter(className, "java/lang/Object", CODE);
+
+        MethodWriter init = cw.method(ClassFileWriter.ACC_PUBLIC, "<init>", "()V");
+        init.aload(0);
+        init.invokeSpecial("java/lang/Object", "<init>", "()V");
+        init.op(ClassFileWriter.RETURN, 0);
+        init.maxLocals(1);
+
+        // run(function, rt) dispatches to the static method of the function.
+        MethodWriter run = cw.method(ClassFileWriter.ACC_PUBLIC,
+                                     "run",
+                                     "(IL" + RUNTIME + ";)J");
+        Label[] targets = new Label[funcs.size()];
+        for (int i = 0; i < targets.length; i++)
+            targets[i] = new Label();
+        Label dflt = new Label();
+        run.iload(1);
+        run.tableSwitch(0, dflt, targets);
+        for (int i = 0; i < targets.length; i++) {
+            run.mark(targets[i]);
+            run.aload(2);
+            run.invokeStatic(className, methodName(i), FUNC_DESC);
+            run.op(ClassFileWriter.LRETURN, -2);
+        }
+        run.mark(dflt);
+        run.op(ClassFileWriter.ACONST_NULL, 1);
+        run.op(ClassFileWriter.ATHROW, -1);
+        run.maxLocals(3);
+
+        for (int i = 0; i < funcs.size(); i++) {
+            IRFuncDecl fDecl = funcs.get(i);
+            compileFunction(cw, i, fDecl, layouts.get(fDecl.name()));
+        }
+
+        byte[] bytes = cw.toByteArray();
+        JitCode code;
+        try {
+            Class<?> cls = new Loader(JitCompiler.class.getClassLoader())
+                    .define(className.replace('/', '.'), bytes);
+            code = (JitCode) cls.getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e) {
+            throw new InternalCompilerError("Failed to load compiled code", e);
+        }
+
+        Map<String, JitFunction> result = new LinkedHashMap<>();
+        for (int i = 0; i < funcs.size(); i++) {
+            String name = funcs.get(i).name();
+            result.put(name, new JitFunction(name, code, i));
+        }
+        return result;
+    }
+
+    private static String methodName(int index) {
+        return "f" + index;
+    }
+
+    private void compileFunction(ClassFileWriter cw, int index,
+            IRFuncDecl fDecl, FrameLayout layout) {
+        m = cw.method(ClassFileWriter.ACC_PUBLIC | ClassFileWriter.ACC_STATIC,
+                      methodName(index),
+                      FUNC_DESC);
+        this.layout = layout;
+        scratch = local(layout.size());
+        m.maxLocals(scratch + 2);
+        labels = new HashMap<>();
+        trapLabels = new LinkedHashMap<>();
+        collectLabels(fDecl.body());
+
+        // JVM locals must be definitely assigned, so fill all registers
+        // with garbage up front.
+        for (int slot = 0; slot < layout.size(); slot++) {
+            m.aload(0);
+            m.invokeInterface(RUNTIME, "garbage", "()J");
+            m.lstore(local(slot));
+        }
+
+        compileStmt(fDecl.body());
+        // Running off the end of the body traps, as in the other engines.
+        trap("No next instruction.  Forgot RETURN?");
+
+        for (Map.Entry<String, Label> e : trapLabels.entrySet()) {
+            m.mark(e.getValue());
+            m.depth(0);
+            String label = e.getKey();
+            trap(nameToIndex.containsKey(label)
+                    ? "Jump to label '" + label + "' outside of function '"
+                            + fDecl.name() + "'!"
+                    : "Could not find label '" + label + "'!");
+        }
+    }
+
+    private void collectLabels(IRStmt stmt) {
+        if (stmt instanceof IRSeq) {
+            for (IRStmt s : ((IRSeq) stmt).stmts())
+                collectLabels(s);
+        }
+        else if (stmt instanceof IRLabel)
+            labels.put(((IRLabel) stmt).name(), new Label());
+    }
+
+    /**
+     *
+     * @param slot slot of a local register
+     * @return the JVM local holding the register
+     */
+    private static int local(int slot) {
+        return 1 + 2 * slot;
+    }
+
+    private Label label(String name) {
+        Label l = labels.get(name);
+        if (l == null) {
+            l = trapLabels.get(name);
+            if (l == null) {
+                l = new Label();
+                trapLabels.put(name, l);
+            }
+        }
+        return l;
+    }
+
+    /**
+     * Emit code that throws a trap.  The stack depth is left unchanged.
+     */
+    private void trap(String message) {
+        m.aload(0);
+        m.ldcString(message);
+        m.invokeInterface(RUNTIME, "trap", "(" + STRING + ")" + EXCEPTION);
+        m.op(ClassFileWriter.ATHROW, -1);
+    }
+
+    protected void compileStmt(IRStmt stmt) {
+        if (stmt instanceof IRSeq) {
+            for (IRStmt s : ((IRSeq) stmt).stmts())
+                compileStmt(s);
+        }
+        else if (stmt instanceof IRLabel) {
+            m.mark(labels.get(((IRLabel) stmt).name()));
+        }
+        else if (stmt instanceof IRMove) {
+            IRMove move = (IRMove) stmt;
+            if (move.target() instanceof IRMem) {
+                m.aload(0);
+                compileExpr(((IRMem) move.target()).expr());
+                compileExpr(move.expr());
+                m.invokeInterface(RUNTIME, "store", "(JJ)V");
+            }
+            else {
+                String tempName = ((IRTemp) move.target()).name();
+                int slot = layout.slotOf(tempName);
+                if (slot >= 0) {
+                    compileExpr(move.expr());
+                    m.lstore(local(slot));
+                }
+                else {
+                    m.aload(0);
+                    m.iconst(layout.globalOf(tempName));
+                    compileExpr(move.expr());
+                    m.invokeInterface(RUNTIME, "putGlobal", "(IJ)V");
+                }
+            }
+        }
+        else if (stmt instanceof IRExp) {
+            compileExpr(((IRExp) stmt).expr());
+            m.op(ClassFileWriter.POP2, -2);
+        }
+        else if (stmt instanceof IRJump) {
+            String target = ((IRName) ((IRJump) stmt).target()).name();
+            m.jump(ClassFileWriter.GOTO, label(target), 0);
+        }
+        else if (stmt instanceof IRCJump) {
+            IRCJump cjump = (IRCJump) stmt;
+            compileCJump(cjump.expr(), label(cjump.trueLabel()));
+            if (cjump.hasFalseLabel())
+                m.jump(ClassFileWriter.GOTO, label(cjump.falseLabel()), 0);
+        }
+        else if (stmt instanceof IRReturn) {
+            m.aload(0);
+            m.iconst(GlobalRegisters.retCode(0));
+            m.invokeInterface(RUNTIME, "getGlobal", "(I)J");
+            m.op(ClassFileWriter.LRETURN, -2);
+        }
+        else throw new InternalCompilerError("Cannot compile statement "
+                + stmt.label());
+    }
+
+    private void compileCJump(IRExpr cond, Label target) {
+        if (cond instanceof IRBinOp) {
+            IRBinOp binOp = (IRBinOp) cond;
+            int branch = branchOpcode(binOp.opType());
+            if (branch >= 0) {
+                // Comparisons always produce 0 or 1, so branch directly.
+                compileExpr(binOp.left());
+                compileExpr(binOp.right());
+                m.op(ClassFileWriter.LCMP, -3);
+                m.jump(branch, target, -1);
+                return;
+            }
+        }
+        compileExpr(cond);
+        m.lstore(scratch);
+        m.lload(scratch);
+        m.lconst(1);
+        m.op(ClassFileWriter.LCMP, -3);
+        m.jump(ClassFileWriter.IFEQ, target, -1);
+        Label ok = new Label();
+        m.lload(scratch);
+        m.lconst(0);
+        m.op(ClassFileWriter.LCMP, -3);
+        m.jump(ClassFileWriter.IFEQ, ok, -1);
+        m.aload(0);
+        m.lload(scratch);
+        m.invokeInterface(RUNTIME, "invalidCondition", "(J)" + EXCEPTION);
+        m.op(ClassFileWriter.ATHROW, -1);
+        m.mark(ok);
+    }
+
+    /**
+     *
+     * @return the branch opcode taken when {@code LCMP} of the operands
+     *          satisfies {@code type}, or -1 if {@code type} is not a
+     *          comparison
+     */
+    private static int branchOpcode(IRBinOp.OpType type) {
+        switch (type) {
+        case EQ:
+            return ClassFileWriter.IFEQ;
+        case NEQ:
+            return ClassFileWriter.IFNE;
+        case LT:
+            return ClassFileWriter.IFLT;
+        case GT:
+            return ClassFileWriter.IFGT;
+        case LEQ:
+            return ClassFileWriter.IFLE;
+        case GEQ:
+            return ClassFileWriter.IFGE;
+        default:
+            return -1;
+        }
+    }
+
+    protected void compileExpr(IRExpr expr) {
+        if (expr instanceof IRConst) {
+            m.lconst(((IRConst) expr).value());
+        }
+        else if (expr instanceof IRTemp) {
+            String tempName = ((IRTemp) expr).name();
+            int slot = layout.slotOf(tempName);
+            if (slot >= 0)
+                m.lload(local(slot));
+            else {
+                m.aload(0);
+                m.iconst(layout.globalOf(tempName));
+                m.invokeInterface(RUNTIME, "getGlobal", "(I)J");
+            }
+        }
+        else if (expr instanceof IRBinOp) {
+            compileBinOp((IRBinOp) expr);
+        }
+        else if (expr instanceof IRMem) {
+            m.aload(0);
+            compileExpr(((IRMem) expr).expr());
+            m.invokeInterface(RUNTIME, "read", "(J)J");
+        }
+        else if (expr instanceof IRCall) {
+            compileCall((IRCall) expr);
+        }
+        else if (expr instanceof IRName) {
+            String name = ((IRName) expr).name();
+            if (libraryFunctions.contains(name))
+                m.lconst(-1);
+            else if (nameToIndex.containsKey(name))
+                m.lconst(nameToIndex.get(name));
+            else {
+                trap("Could not find label '" + name + "'!");
+                m.lconst(0);
+            }
+        }
+        else if (expr instanceof IRESeq) {
+            compileStmt(((IRESeq) expr).stmt());
+            compileExpr(((IRESeq) expr).expr());
+        }
+        else throw new InternalCompilerError("Cannot compile expression "
+                + expr.label());
+    }
+
+    private void compileBinOp(IRBinOp binOp) {
+        IRBinOp.OpType type = binOp.opType();
+        if (type == IRBinOp.OpType.HMUL) {
+            m.aload(0);
+            compileExpr(binOp.left());
+            compileExpr(binOp.right());
+            m.invokeInterface(RUNTIME, "hmul", "(JJ)J");
+            return;
+        }
+
+        compileExpr(binOp.left());
+        compileExpr(binOp.right());
+        switch (type) {
+        case ADD:
+            m.op(ClassFileWriter.LADD, -2);
+            break;
+        case SUB:
+            m.op(ClassFileWriter.LSUB, -2);
+            break;
+        case MUL:
+            m.op(ClassFileWriter.LMUL, -2);
+            break;
+        case DIV:
+            checkDivisor();
+            m.op(ClassFileWriter.LDIV, -2);
+            break;
+        case MOD:
+            checkDivisor();
+            m.op(ClassFileWriter.LREM, -2);
+            break;
+        case AND:
+            m.op(ClassFileWriter.LAND, -2);
+            break;
+        case OR:
+            m.op(ClassFileWriter.LOR, -2);
+            break;
+        case XOR:
+            m.op(ClassFileWriter.LXOR, -2);
+            break;
+        case LSHIFT:
+            m.op(ClassFileWriter.L2I, -1);
+            m.op(ClassFileWriter.LSHL, -1);
+            break;
+        case RSHIFT:
+            m.op(ClassFileWriter.L2I, -1);
+            m.op(ClassFileWriter.LUSHR, -1);
+            break;
+        case ARSHIFT:
+            m.op(ClassFileWriter.L2I, -1);
+            m.op(ClassFileWriter.LSHR, -1);
+            break;
+        case EQ:
+        case NEQ:
+        case LT:
+        case GT:
+        case LEQ:
+        case GEQ: {
+            Label isTrue = new Label();
+            Label end = new Label();
+            m.op(ClassFileWriter.LCMP, -3);
+            m.jump(branchOpcode(type), isTrue, -1);
+            m.lconst(0);
+            m.jump(ClassFileWriter.GOTO, end, 0);
+            m.depth(m.depth() - 2);
+            m.mark(isTrue);
+            m.lconst(1);
+            m.mark(end);
+            break;
+        }
+        default:
+            throw new InternalCompilerError("Invalid binary operation");
+        }
+    }
+
+    /**
+     * Trap if the long on top of the stack is zero, leaving it in place.
+     */
+    private void checkDivisor() {
+        Label ok = new Label();
+        m.op(ClassFileWriter.DUP2, 2);
+        m.lconst(0);
+        m.op(ClassFileWriter.LCMP, -3);
+        m.jump(ClassFileWriter.IFNE, ok, -1);
+        trap("Division by zero!");
+        m.mark(ok);
+    }
+
+    private void compileCall(IRCall call) {
+        IRExpr target = call.target();
+        if (target instanceof IRName) {
+            String name = ((IRName) target).name();
+            Integer method = methodIndices.get(name);
+            if (method != null && !libraryFunctions.contains(name)) {
+                // Direct invocation of a function in this class, unless the
+                // Java stack is too deep.
+                Label deferred = new Label();
+                Label end = new Label();
+                m.aload(0);
+                compileArgs(call.args());
+                m.invokeInterface(RUNTIME, "enterDirect", "([J)Z");
+                m.jump(ClassFileWriter.IFEQ, deferred, -1);
+                m.aload(0);
+                m.invokeStatic(className, methodName(method), FUNC_DESC);
+                m.aload(0);
+                m.invokeInterface(RUNTIME, "leaveDirect", "()V");
+                m.jump(ClassFileWriter.GOTO, end, 0);
+                m.depth(m.depth() - 2);
+                m.mark(deferred);
+                m.aload(0);
+                m.iconst(functionIds.get(name));
+                m.invokeInterface(RUNTIME, "callDeferred", "(I)J");
+                m.mark(end);
+                return;
+            }
+            Integer function = functionIds.get(name);
+            if (function != null) {
+                m.aload(0);
+                m.iconst(function);
+                compileArgs(call.args());
+                m.invokeInterface(RUNTIME, "call", "(I[J)J");
+                return;
+            }
+        }
+        m.aload(0);
+        m.iconst(insnToIndex.get(call).intValue());
+        compileExpr(target);
+        compileArgs(call.args());
+        m.invokeInterface(RUNTIME, "callIndirect", "(IJ[J)J");
+    }
+
+    /**
+     * Evaluate arguments into a new long[].
+     */
+    private void compileArgs(List<IRExpr> args) {
+        m.iconst(args.size());
+        m.newLongArray();
+        for (int i = 0; i < args.size(); i++) {
+            m.op(ClassFileWriter.DUP, 1);
+            m.iconst(i);
+            compileExpr(args.get(i));
+            m.op(ClassFileWriter.LASTORE, -4);
+        }
+    }
+
+    /**
+     * Class loader for generated classes.  Each compilation uses a fresh
+     * loader, so generated code can be unloaded with its simulator.
+     */
+    private static class Loader extends ClassLoader {
+        Loader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
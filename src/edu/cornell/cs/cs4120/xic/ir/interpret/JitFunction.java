@@ -0,0 +1,35 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * A function compiled to JVM bytecode by {@link JitCompiler}.
+ */
+public class JitFunction {
+    /** name of the function */
+    private final String name;
+
+    /** the generated class holding the function */
+    private final JitCode code;
+
+    /** index of the function within the generated class */
+    private final int index;
+
+    JitFunction(String name, JitCode code, int index) {
+        this.name = name;
+        this.code = code;
+        this.index = index;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Run the function.  Arguments must already have been passed in the
+     * argument registers.
+     * @param rt the simulator services
+     * @return the value of the first return register
+     */
+    public long invoke(JitRuntime rt) {
+        return code.run(index, rt);
+    }
+}
@@ -0,0 +1,102 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+/**
+ * The services of the simulator that are available to code generated by
+ * {@link JitCompiler}.
+ */
+public interface JitRuntime {
+    /**
+     * Read a value at the specified location on the heap
+     * @param addr the address to be read
+     * @return the value at {@code addr}
+     */
+    long read(long addr);
+
+    /**
+     * Write a value at the specified location on the heap
+     * @param addr the address to be written
+     * @param value the value to be written
+     */
+    void store(long addr, long value);
+
+    /**
+     * Fetch the value at the given global register
+     * @param reg the {@link GlobalRegisters} code of the register
+     * @return the value at the given register
+     */
+    long getGlobal(int reg);
+
+    /**
+     * Store a value into the given global register
+     * @param reg the {@link GlobalRegisters} code of the register
+     * @param value value to be stored
+     */
+    void putGlobal(int reg, long value);
+
+    /**
+     * Pass arguments to a function that is about to be invoked directly,
+     * unless the Java stack is too deep for another direct invocation
+     * @param args the arguments
+     * @return true if the function may be invoked directly, after which
+     *          {@link #leaveDirect()} must be called, or false if it must be
+     *          called with {@link #callDeferred(int)} instead
+     */
+    boolean enterDirect(long[] args);
+
+    /**
+     * End a direct invocation begun by {@link #enterDirect(long[])}
+     */
+    void leaveDirect();
+
+    /**
+     * Simulate a call of a resolved function with the arguments passed to
+     * {@link #enterDirect(long[])}, which refused a direct invocation
+     * @param function id of the function in the simulator's function table
+     * @return the value of the first return register
+     */
+    long callDeferred(int function);
+
+    /**
+     * Simulate a call of a resolved function
+     * @param function id of the function in the simulator's function table
+     * @param args arguments to the function call
+     * @return the value of the first return register
+     */
+    long call(int function, long[] args);
+
+    /**
+     * Simulate a function call through a computed address
+     * @param site address of the CALL instruction
+     * @param target address of the function, as produced by NAME
+     * @param args arguments to the function call
+     * @return the value of the first return register
+     */
+    long callIndirect(int site, long target, long[] args);
+
+    /**
+     *
+     * @return a garbage value for an uninitialized register
+     */
+    long garbage();
+
+    /**
+     *
+     * @return the high 64 bits of the 128-bit product of {@code l} and
+     *          {@code r}
+     */
+    long hmul(long l, long r);
+
+    /**
+     *
+     * @param message the reason for the trap
+     * @return the exception to be thrown
+     */
+    RuntimeException trap(String message);
+
+    /**
+     *
+     * @param value a CJUMP condition that is neither 0 nor 1
+     * @return the exception to be thrown
+     */
+    RuntimeException invalidCondition(long value);
+}
@@ -0,0 +1,95 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A heap restored from a {@link Snapshot}.
+ *
+ * Chunks saved in the snapshot are mapped privately from the snapshot file,
+ * so restoring a heap does not read it, and writes go to private copies of
+ * the pages rather than to the file.  Chunks that had not been touched when
+ * the snapshot was taken are allocated and filled with garbage on first
+ * access, as in {@link DirectHeap}.
+ */
+class MappedHeap implements Heap {
+    private static final int CHUNK_SHIFT = Snapshot.CHUNK_SHIFT;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+
+    private final long size;
+    private final LongBuffer[] chunks;
+    private final long seed;
+
+    /**
+     * @param channel the snapshot file
+     * @param order the byte order of the saved heap
+     * @param offset the offset of the first chunk in the file
+     * @param size the number of words in the heap
+     * @param seed the seed of the garbage in untouched words
+     * @param saved which chunks were saved
+     * @throws IOException if mapping the file fails
+     */
+    MappedHeap(FileChannel channel, ByteOrder order, long offset, long size,
+            long seed, boolean[] saved) throws IOException {
+        this.size = size;
+        this.seed = seed;
+        chunks = new LongBuffer[saved.length];
+        for (int i = 0; i < saved.length; i++) {
+            if (!saved[i]) continue;
+            long base = (long) i << CHUNK_SHIFT;
+            long words = Math.min(1L << CHUNK_SHIFT, size - base);
+            chunks[i] = channel.map(FileChannel.MapMode.PRIVATE,
+                                    offset + base * Configuration.WORD_SIZE,
+                                    words * Configuration.WORD_SIZE)
+                               .order(order)
+                               .asLongBuffer();
+        }
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public long seed() {
+        return seed;
+    }
+
+    @Override
+    public boolean isTouched(long from, long to) {
+        for (long i = from >>> CHUNK_SHIFT; i << CHUNK_SHIFT < to; i++)
+            if (chunks[(int) i] != null) return true;
+        return false;
+    }
+
+    @Override
+    public long read(long index) {
+        return chunk(index).get((int) (index & CHUNK_MASK));
+    }
+
+    @Override
+    public void store(long index, long value) {
+        chunk(index).put((int) (index & CHUNK_MASK), value);
+    }
+
+    private LongBuffer chunk(long index) {
+        int i = (int) (index >>> CHUNK_SHIFT);
+        LongBuffer chunk = chunks[i];
+        if (chunk == null) {
+            long base = (long) i << CHUNK_SHIFT;
+            int words = (int) Math.min(1L << CHUNK_SHIFT, size - base);
+            chunk = ByteBuffer.allocateDirect(words * Configuration.WORD_SIZE)
+                              .order(ByteOrder.nativeOrder())
+                              .asLongBuffer();
+            // initialize chunk to garbage
+            for (int j = 0; j < words; j++)
+                chunk.put(j, Garbage.word(seed, base + j));
+            chunks[i] = chunk;
+        }
+        return chunk;
+    }
+}
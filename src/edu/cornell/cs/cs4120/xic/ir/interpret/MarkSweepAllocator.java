@@ -0,0 +1,256 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.Trap;
+
+/**
+ * An allocator that reclaims unreachable blocks with a conservative
+ * mark-sweep collector.
+ *
+ * Memory is handed out first-fit from the blocks freed so far, and from the
+ * top of the heap when none fits.  When the heap is exhausted, the
+ * collector marks every block that a root (a register, or a value on the
+ * expression or operand stack) or a marked block could point to, and frees
+ * the rest.  Any word whose value lies within a block, or just past its end
+ * (where a pointer to an empty Xi array points), counts as a pointer, so
+ * blocks are never moved.  Blocks may also be freed explicitly.
+ */
+public class MarkSweepAllocator implements Allocator {
+    /** allocated blocks (start address -> block) */
+    private final TreeMap<Long, Block> blocks;
+
+    /** free regions below {@link #top} (start address -> size in bytes) */
+    private final TreeMap<Long, Long> free;
+
+    /** heap pointer to lowest unallocated region */
+    private long top;
+
+    /** start addresses of marked blocks whose contents are to be scanned */
+    private long[] worklist;
+    private int pending;
+
+    /* statistics */
+    private long collections;
+    private long bytesAllocated;
+    private long bytesFreed;
+    private long bytesLive;
+    private long nanos;
+
+    public MarkSweepAllocator() {
+        blocks = new TreeMap<>();
+        free = new TreeMap<>();
+        worklist = new long[64];
+    }
+
+    @Override
+    public long allocate(IRSimulator sim, long size) {
+        long limit = sim.heap().size() * Configuration.WORD_SIZE;
+        long addr = fit(size);
+        if (addr < 0 && top + size > limit) {
+            collect(sim);
+            addr = fit(size);
+            if (addr < 0 && top + size > limit)
+                throw new Trap("Out of memory: cannot allocate " + size
+                        + " bytes");
+        }
+        if (addr < 0) {
+            addr = top;
+            top += size;
+        }
+        if (size > 0) blocks.put(addr, new Block(size));
+        bytesAllocated += size;
+        return addr;
+    }
+
+    @Override
+    public void free(IRSimulator sim, long addr) {
+        Block block = blocks.remove(addr);
+        if (block == null)
+            throw new Trap("Invalid free: " + addr
+                    + " is not the start of an allocated block");
+        release(addr, block.size);
+        bytesFreed += block.size;
+    }
+
+    @Override
+    public long top() {
+        return top;
+    }
+
+    @Override
+    public boolean needsRoots() {
+        return true;
+    }
+
+    /**
+     * Take a block of memory from the free regions
+     * @param size the number of bytes needed
+     * @return the start of the block, or -1 if no free region is large
+     *          enough
+     */
+    private long fit(long size) {
+        for (Map.Entry<Long, Long> e : free.entrySet()) {
+            long start = e.getKey();
+            long length = e.getValue();
+            if (length < size) continue;
+            free.remove(start);
+            if (length > size) free.put(start + size, length - size);
+            return start;
+        }
+        return -1;
+    }
+
+    /**
+     * Free every block that is not reachable from the roots of a simulator
+     * @param sim the simulator
+     */
+    public void collect(IRSimulator sim) {
+        long start = System.nanoTime();
+        Heap heap = sim.heap();
+        sim.scanRoots(this::mark);
+        while (pending > 0) {
+            long addr = worklist[--pending];
+            long index = addr / Configuration.WORD_SIZE;
+            long end =
+                    index + blocks.get(addr).size / Configuration.WORD_SIZE;
+            for (long i = index; i < end; i++)
+                mark(heap.read(i));
+        }
+
+        long freed = 0;
+        long live = 0;
+        Iterator<Map.Entry<Long, Block>> it = blocks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Block> e = it.next();
+            // Removing an entry may reuse it for the next one.
+            long addr = e.getKey();
+            Block block = e.getValue();
+            if (block.marked) {
+                block.marked = false;
+                live += block.size;
+            }
+            else {
+                it.remove();
+                release(addr, block.size);
+                freed += block.size;
+            }
+        }
+        // Give the free region at the top back to the heap pointer.
+        Map.Entry<Long, Long> last = free.lastEntry();
+        if (last != null && last.getKey() + last.getValue() == top) {
+            free.remove(last.getKey());
+            top = last.getKey();
+        }
+
+        collections++;
+        bytesFreed += freed;
+        bytesLive = live;
+        nanos += System.nanoTime() - start;
+        if (sim.debugLevel > 0)
+            System.out.println("GC: freed " + freed + " bytes, " + live
+                    + " bytes live");
+    }
+
+    /**
+     * Mark the blocks that a value could point to
+     * @param value a value found in a root or a marked block
+     */
+    private void mark(long value) {
+        Map.Entry<Long, Block> e = blocks.floorEntry(value);
+        if (e == null) return;
+        mark(e, value);
+        // A pointer just past the end of the previous block.
+        if (e.getKey() == value) {
+            e = blocks.lowerEntry(value);
+            if (e != null) mark(e, value);
+        }
+    }
+
+    private void mark(Map.Entry<Long, Block> e, long value) {
+        Block block = e.getValue();
+        if (block.marked || value > e.getKey() + block.size) return;
+        block.marked = true;
+        if (pending == worklist.length) {
+            long[] grown = new long[pending * 2];
+            System.arraycopy(worklist, 0, grown, 0, pending);
+            worklist = grown;
+        }
+        worklist[pending++] = e.getKey();
+    }
+
+    /**
+     * Add a region to the free regions, merging it with adjacent ones
+     */
+    private void release(long start, long size) {
+        Map.Entry<Long, Long> before = free.lowerEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            free.remove(before.getKey());
+            start = before.getKey();
+            size += before.getValue();
+        }
+        Long after = free.remove(start + size);
+        if (after != null) size += after;
+        free.put(start, size);
+    }
+
+    /**
+     *
+     * @return the number of collections so far
+     */
+    public long collections() {
+        return collections;
+    }
+
+    /**
+     *
+     * @return the number of bytes allocated so far
+     */
+    public long bytesAllocated() {
+        return bytesAllocated;
+    }
+
+    /**
+     *
+     * @return the number of bytes freed so far, explicitly or by
+     *          collections
+     */
+    public long bytesFreed() {
+        return bytesFreed;
+    }
+
+    /**
+     *
+     * @return the number of bytes found reachable by the last collection
+     */
+    public long bytesLive() {
+        return bytesLive;
+    }
+
+    /**
+     *
+     * @return the time spent collecting, in nanoseconds
+     */
+    public long collectionNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        return collections + " collections, " + bytesAllocated
+                + " bytes allocated, " + bytesFreed + " bytes freed, "
+                + bytesLive + " bytes live after the last collection, "
+                + nanos / 1000000 + " ms collecting";
+    }
+
+    private static class Block {
+        final long size;
+        boolean marked;
+
+        Block(long size) {
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * The destination of the output of a simulated program.
+ *
+ * Characters are collected in a buffer and encoded in bulk when the buffer
+ * fills up, when the simulator finishes a call or waits for input, and, for
+ * sinks that flush lines, at the end of every line.
+ */
+public class OutputSink implements Flushable {
+    private static final int CAPACITY = 8192;
+
+    private final WritableByteChannel channel;
+
+    /** the stream behind {@link #channel}, if any */
+    private final OutputStream stream;
+
+    /** whether to flush at the end of every line */
+    private final boolean flushLines;
+
+    private final CharsetEncoder encoder;
+    private final CharBuffer chars;
+    private final ByteBuffer bytes;
+
+    private OutputSink(WritableByteChannel channel, OutputStream stream,
+            boolean flushLines) {
+        this.channel = channel;
+        this.stream = stream;
+        this.flushLines = flushLines;
+        encoder = Charset.defaultCharset()
+                         .newEncoder()
+                         .onMalformedInput(CodingErrorAction.REPLACE)
+                         .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars = CharBuffer.allocate(CAPACITY);
+        bytes = ByteBuffer.allocate(CAPACITY * 4);
+    }
+
+    /**
+     *
+     * @return a sink writing to standard output, flushed at line ends
+     */
+    public static OutputSink console() {
+        return of(System.out, true);
+    }
+
+    /**
+     * @param out the stream to write to
+     * @param flushLines whether to flush at the end of every line, e.g., for
+     *          interactive output
+     * @return a sink writing to {@code out}
+     */
+    public static OutputSink of(OutputStream out, boolean flushLines) {
+        return new OutputSink(Channels.newChannel(out), out, flushLines);
+    }
+
+    /**
+     * @param channel the channel to write to
+     * @return a sink writing to {@code channel}
+     */
+    public static OutputSink of(WritableByteChannel channel) {
+        return new OutputSink(channel, null, false);
+    }
+
+    /**
+     *
+     * @return a sink keeping the output in memory, see
+     *          {@link Memory#contents()}
+     */
+    public static Memory memory() {
+        return new Memory(new ByteArrayOutputStream());
+    }
+
+    /**
+     * Write a character
+     * @param c the character
+     * @throws IOException if writing fails
+     */
+    public void print(char c) throws IOException {
+        if (!chars.hasRemaining()) encode();
+        chars.put(c);
+    }
+
+    /**
+     * End the current line
+     * @throws IOException if writing fails
+     */
+    public void println() throws IOException {
+        String separator = System.lineSeparator();
+        for (int i = 0; i < separator.length(); i++)
+            print(separator.charAt(i));
+        if (flushLines) flush();
+    }
+
+    /**
+     * Write out all buffered characters
+     * @throws IOException if writing fails
+     */
+    @Override
+    public void flush() throws IOException {
+        encode();
+        if (stream != null) stream.flush();
+    }
+
+    /**
+     * Encode the buffered characters and write them to the channel
+     */
+    private void encode() throws IOException {
+        chars.flip();
+        CoderResult result;
+        do {
+            result = encoder.encode(chars, bytes, false);
+            bytes.flip();
+            while (bytes.hasRemaining())
+                channel.write(bytes);
+            bytes.clear();
+        } while (result.isOverflow());
+        // Keep an unpaired high surrogate for the next character.
+        chars.compact();
+    }
+
+    /**
+     * A sink that keeps the output in memory
+     */
+    public static class Memory extends OutputSink {
+        private final ByteArrayOutputStream buffer;
+
+        private Memory(ByteArrayOutputStream buffer) {
+            super(Channels.newChannel(buffer), null, false);
+            this.buffer = buffer;
+        }
+
+        /**
+         *
+         * @return the output written so far, decoded with the default
+         *          charset
+         * @throws IOException if writing fails
+         */
+        public String contents() throws IOException {
+            flush();
+            return new String(buffer.toByteArray(), Charset.defaultCharset());
+        }
+
+        /**
+         * Discard the output written so far
+         * @throws IOException if writing fails
+         */
+        public void reset() throws IOException {
+            flush();
+            buffer.reset();
+        }
+    }
+}
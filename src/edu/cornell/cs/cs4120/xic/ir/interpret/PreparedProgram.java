@@ -0,0 +1,321 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import edu.cornell.cs.cs4120.xic.ir.IRCompUnit;
+import edu.cornell.cs.cs4120.xic.ir.IRFuncDecl;
+import edu.cornell.cs.cs4120.xic.ir.IRName;
+import edu.cornell.cs.cs4120.xic.ir.IRNode;
+import edu.cornell.cs.cs4120.xic.ir.IRTemp;
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.ExecutionMode;
+import edu.cornell.cs.cs4120.xic.ir.visit.InsnMapsBuilder;
+
+/**
+ * A program loaded for simulation.
+ *
+ * Preparing a program numbers its instructions, assigns registers to slots
+ * and codes, binds names to functions and addresses, and compiles function
+ * bodies for the execution mode.  None of this changes afterwards, so a
+ * prepared program can be shared by any number of simulators, each with its
+ * own heap, registers and I/O, running on different threads.
+ *
+ * Functions compiled on demand, e.g., when simulators in tiered mode
+ * promote them, are compiled once and shared as well.
+ */
+public final class PreparedProgram {
+    /** the compilation unit, as given */
+    final IRCompUnit compUnit;
+
+    /** how function bodies are executed */
+    final ExecutionMode mode;
+
+    /** functions implemented by the simulator */
+    final IntrinsicRegistry intrinsics;
+    final Set<String> libraryFunctions;
+
+    /** map from address to instruction */
+    final Map<Long, IRNode> indexToInsn;
+    final Map<IRNode, Long> insnToIndex;
+
+    /** map from labeled name to address */
+    final Map<String, Long> nameToIndex;
+
+    final List<String> ctors;
+
+    /** the codes of the global registers, none of which is ever written */
+    final GlobalRegisters registers;
+
+    /** register of each TEMP instruction, see {@link IRSimulator} */
+    final int[] tempBindings;
+
+    /** map from function name to the slot assignment of its registers */
+    final Map<String, FrameLayout> layouts;
+
+    /** functions by id, with their compiled forms for {@link #mode} */
+    final FunctionHandle[] functions;
+
+    /** map from function name to id */
+    final Map<String, Integer> functionIds;
+
+    /** interned names of global registers, functions and labels */
+    final List<String> symbols;
+    final Map<String, Integer> symbolIds;
+
+    /** map from symbol id to the id of the function of that name, or -1 */
+    final int[] symbolFunctions;
+
+    /** map from symbol id to its value as a NAME, or {@link #UNRESOLVED} */
+    final long[] symbolAddrs;
+
+    /** map from address of a NAME instruction to the symbol id of the name */
+    final int[] nameSymbols;
+
+    /** the address of a name that is not a label */
+    static final long UNRESOLVED = Long.MIN_VALUE;
+
+    private final BytecodeCompiler bytecodeCompiler;
+    private final ClosureCompiler closureCompiler;
+    private final JitCompiler jitCompiler;
+
+    /* compiled forms by function id, once compiled */
+    private final BytecodeFunction[] bytecode;
+    private final ClosureFunction[] closures;
+    private final JitFunction[] jit;
+    private final boolean[] closureCompiled;
+    private final boolean[] jitCompiled;
+
+    /**
+     * Prepare a program for the tree interpreter
+     * @param compUnit the compilation unit to be interpreted
+     */
+    public PreparedProgram(IRCompUnit compUnit) {
+        this(compUnit, ExecutionMode.TREE);
+    }
+
+    /**
+     * Prepare a program
+     * @param compUnit the compilation unit to be interpreted
+     * @param mode how function bodies are executed
+     */
+    public PreparedProgram(IRCompUnit compUnit, ExecutionMode mode) {
+        this(compUnit, mode, IntrinsicRegistry.standard());
+    }
+
+    /**
+     * Prepare a program
+     * @param compUnit the compilation unit to be interpreted, which must not
+     *          be modified afterwards
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator, usually
+     *          {@link IntrinsicRegistry#standard()} plus any user intrinsics;
+     *          intrinsics may run on several threads at once
+     */
+    public PreparedProgram(IRCompUnit compUnit, ExecutionMode mode,
+            IntrinsicRegistry intrinsics) {
+        this.compUnit = compUnit;
+        this.mode = mode;
+        this.intrinsics = new IntrinsicRegistry(intrinsics);
+        libraryFunctions = new LinkedHashSet<>(this.intrinsics.names());
+
+        InsnMapsBuilder imb = new InsnMapsBuilder();
+        IRCompUnit numbered = (IRCompUnit) imb.visit(compUnit);
+        indexToInsn = imb.indexToInsn();
+        insnToIndex = imb.insnToIndex();
+        nameToIndex = imb.nameToIndex();
+        ctors = imb.ctors();
+
+        registers = new GlobalRegisters(new Random());
+        symbols = new ArrayList<>();
+        symbolIds = new HashMap<>();
+        tempBindings = new int[indexToInsn.size()];
+        layouts = new HashMap<>();
+        for (IRFuncDecl fDecl : numbered.functions().values())
+            layouts.put(fDecl.name(), buildLayout(fDecl));
+
+        // Create the function table, and bind names to functions and
+        // addresses, so that no name needs to be looked up while the
+        // program runs.
+        List<FunctionHandle> handles = new ArrayList<>();
+        functionIds = new HashMap<>();
+        for (String name : libraryFunctions) {
+            functionIds.put(name, handles.size());
+            handles.add(new FunctionHandle(name,
+                                           handles.size(),
+                                           this.intrinsics.lookup(name)));
+        }
+        for (IRFuncDecl fDecl : numbered.functions().values()) {
+            String name = fDecl.name();
+            // Library functions take precedence.
+            if (functionIds.containsKey(name)) continue;
+            functionIds.put(name, handles.size());
+            handles.add(new FunctionHandle(name,
+                                           handles.size(),
+                                           fDecl,
+                                           layouts.get(name)));
+        }
+        functions = handles.toArray(new FunctionHandle[handles.size()]);
+
+        nameSymbols = new int[indexToInsn.size()];
+        for (Map.Entry<Long, IRNode> e : indexToInsn.entrySet())
+            if (e.getValue() instanceof IRName)
+                nameSymbols[e.getKey().intValue()] =
+                        intern(((IRName) e.getValue()).name());
+
+        symbolFunctions = new int[symbols.size()];
+        symbolAddrs = new long[symbols.size()];
+        for (int i = 0; i < symbols.size(); i++) {
+            String name = symbols.get(i);
+            Integer id = functionIds.get(name);
+            symbolFunctions[i] = id == null ? -1 : id;
+            if (libraryFunctions.contains(name))
+                symbolAddrs[i] = -1;
+            else if (nameToIndex.containsKey(name))
+                symbolAddrs[i] = nameToIndex.get(name);
+            else symbolAddrs[i] = UNRESOLVED;
+        }
+
+        bytecodeCompiler = new BytecodeCompiler(insnToIndex,
+                                                nameToIndex,
+                                                libraryFunctions,
+                                                functionIds);
+        closureCompiler = new ClosureCompiler(insnToIndex,
+                                              nameToIndex,
+                                              libraryFunctions,
+                                              functionIds);
+        jitCompiler = new JitCompiler(insnToIndex,
+                                      nameToIndex,
+                                      libraryFunctions,
+                                      functionIds);
+        bytecode = new BytecodeFunction[functions.length];
+        closures = new ClosureFunction[functions.length];
+        jit = new JitFunction[functions.length];
+        closureCompiled = new boolean[functions.length];
+        jitCompiled = new boolean[functions.length];
+
+        if (mode == ExecutionMode.JIT) {
+            // Compile all functions into one class.
+            Map<String, JitFunction> compiled =
+                    jitCompiler.compile(numbered.functions().values(),
+                                        layouts);
+            for (FunctionHandle f : functions) {
+                if (f.isLibrary()) continue;
+                jit[f.id] = compiled.get(f.name);
+                jitCompiled[f.id] = true;
+            }
+        }
+        if (mode != ExecutionMode.TREE && mode != ExecutionMode.TIERED) {
+            for (FunctionHandle f : functions) {
+                if (f.isLibrary()) continue;
+                if (mode == ExecutionMode.JIT) {
+                    f.jit = jit[f.id];
+                    if (f.jit != null) continue;
+                }
+                if (mode == ExecutionMode.CLOSURE
+                        || mode == ExecutionMode.JIT) {
+                    f.closure = closure(f);
+                    if (f.closure != null) continue;
+                }
+                f.bytecode = bytecode(f);
+            }
+        }
+    }
+
+    /**
+     *
+     * @return how function bodies are executed
+     */
+    public ExecutionMode mode() {
+        return mode;
+    }
+
+    /**
+     * Assign slots to the local registers of a function and codes to the
+     * global registers, bind each TEMP to its register, and intern the
+     * other names the function refers to
+     * @param fDecl the function
+     * @return the slot assignment
+     */
+    private FrameLayout buildLayout(IRFuncDecl fDecl) {
+        FrameLayout layout = new FrameLayout(fDecl.name());
+        scanNames(fDecl.body(), layout);
+        return layout;
+    }
+
+    private void scanNames(IRNode n, FrameLayout layout) {
+        if (n instanceof IRTemp) {
+            String tempName = ((IRTemp) n).name();
+            int binding;
+            if (GlobalRegisters.isGlobal(tempName)) {
+                int code = registers.codeOf(tempName);
+                layout.addGlobal(tempName, code);
+                binding = -1 - code;
+            }
+            else binding = layout.addTemp(tempName);
+            tempBindings[insnToIndex.get(n).intValue()] = binding;
+        }
+        else if (n instanceof IRName) intern(((IRName) n).name());
+        for (IRNode child : n.children)
+            scanNames(child, layout);
+    }
+
+    /**
+     *
+     * @param name a function or label name
+     * @return the symbol id of {@code name}
+     */
+    private int intern(String name) {
+        Integer id = symbolIds.get(name);
+        if (id == null) {
+            id = symbols.size();
+            symbols.add(name);
+            symbolIds.put(name, id);
+        }
+        return id;
+    }
+
+    /**
+     *
+     * @param f a function that is not a library function
+     * @return the function compiled to bytecode
+     */
+    synchronized BytecodeFunction bytecode(FunctionHandle f) {
+        if (bytecode[f.id] == null)
+            bytecode[f.id] = bytecodeCompiler.compile(f.fDecl, f.layout);
+        return bytecode[f.id];
+    }
+
+    /**
+     *
+     * @param f a function that is not a library function
+     * @return the function compiled to closures, or null if it cannot be
+     */
+    synchronized ClosureFunction closure(FunctionHandle f) {
+        if (!closureCompiled[f.id]) {
+            closures[f.id] = closureCompiler.compile(f.fDecl, f.layout);
+            closureCompiled[f.id] = true;
+        }
+        return closures[f.id];
+    }
+
+    /**
+     *
+     * @param f a function that is not a library function
+     * @return the function compiled to JVM bytecode, or null if it cannot be
+     */
+    synchronized JitFunction jit(FunctionHandle f) {
+        if (!jitCompiled[f.id]) {
+            jit[f.id] = jitCompiler.compile(Collections.singletonList(f.fDecl),
+                                            layouts)
+                                   .get(f.name);
+            jitCompiled[f.id] = true;
+        }
+        return jit[f.id];
+    }
+}
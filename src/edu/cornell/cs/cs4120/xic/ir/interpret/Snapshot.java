@@ -0,0 +1,269 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import edu.cornell.cs.cs4120.util.CodeWriterSExpPrinter;
+import edu.cornell.cs.cs4120.util.SExpPrinter;
+import edu.cornell.cs.cs4120.xic.ir.IRCompUnit;
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.ExecutionMode;
+import edu.cornell.cs.cs4120.xic.ir.parse.IRLexer;
+import edu.cornell.cs.cs4120.xic.ir.parse.IRParser;
+
+/**
+ * Checkpoints of the state of a simulator between calls.
+ *
+ * A snapshot holds the program (as S-expression text), the heap, the heap
+ * pointer and the global registers.  Restoring a snapshot prepares the
+ * program again, unless it is already prepared, without running its
+ * constructors, and maps the saved heap
+ * from the snapshot file, so large heaps are only read as they are used.
+ *
+ * The file starts with a header, followed by the heap at a page-aligned
+ * offset, one {@link #CHUNK_WORDS}-word chunk after another.  Chunks that
+ * still held nothing but garbage are not written; restored heaps regenerate
+ * them from the saved seed.
+ */
+public final class Snapshot {
+    private static final int MAGIC = 0x58495350; // "XISP"
+    private static final int VERSION = 1;
+
+    static final int CHUNK_SHIFT = 20;
+
+    /** number of words per chunk of the saved heap */
+    public static final int CHUNK_WORDS = 1 << CHUNK_SHIFT;
+
+    /** alignment of the heap in the file */
+    private static final int ALIGNMENT = 1 << 16;
+
+    private Snapshot() {
+    }
+
+    /**
+     * Save the state of a simulator
+     * @param sim the simulator, which must not be running a call
+     * @param file the file to be written
+     * @throws IOException if writing fails
+     */
+    public static void save(IRSimulator sim, Path file) throws IOException {
+        if (sim.isRunning())
+            throw new IllegalStateException("Cannot take a snapshot during a "
+                    + "call");
+        if (!(sim.allocator() instanceof BumpAllocator))
+            throw new IllegalStateException("Cannot take a snapshot of a "
+                    + "heap with free blocks");
+
+        Heap heap = sim.heap();
+        long size = heap.size();
+        boolean[] saved = new boolean[chunkCount(size)];
+        for (int i = 0; i < saved.length; i++) {
+            long base = (long) i << CHUNK_SHIFT;
+            long end = Math.min(size, base + CHUNK_WORDS);
+            saved[i] = heap.isTouched(base, end);
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(header)) {
+            out.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN);
+            byte[] program =
+                    print(sim.compUnit()).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(program.length);
+            out.write(program);
+            out.writeLong(sim.heapPointer());
+            out.writeLong(size);
+            out.writeLong(heap.seed());
+            for (boolean b : saved)
+                out.writeBoolean(b);
+            sim.globals.write(out);
+        }
+        // magic, version, offset of the heap
+        long offset = align(16 + header.size());
+
+        try (FileChannel channel =
+                FileChannel.open(file,
+                                 StandardOpenOption.CREATE,
+                                 StandardOpenOption.TRUNCATE_EXISTING,
+                                 StandardOpenOption.WRITE)) {
+            ByteBuffer prefix = ByteBuffer.allocate(16);
+            prefix.putInt(MAGIC).putInt(VERSION).putLong(offset).flip();
+            writeFully(channel, prefix, 0);
+            writeFully(channel, ByteBuffer.wrap(header.toByteArray()), 16);
+
+            int chunkBytes = CHUNK_WORDS * Configuration.WORD_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocateDirect(chunkBytes)
+                                          .order(ByteOrder.nativeOrder());
+            LongBuffer words = buffer.asLongBuffer();
+            for (int i = 0; i < saved.length; i++) {
+                if (!saved[i]) continue;
+                long base = (long) i << CHUNK_SHIFT;
+                int count = (int) Math.min(CHUNK_WORDS, size - base);
+                for (int j = 0; j < count; j += ArrayHeap.PAGE_WORDS) {
+                    // Avoid touching pages that have not been accessed.
+                    long from = base + j;
+                    int n = Math.min(ArrayHeap.PAGE_WORDS, count - j);
+                    boolean touched = heap.isTouched(from, from + n);
+                    for (int k = 0; k < n; k++)
+                        words.put(j + k, touched ? heap.read(from + k)
+                                : Garbage.word(heap.seed(), from + k));
+                }
+                buffer.clear().limit(count * Configuration.WORD_SIZE);
+                writeFully(channel,
+                           buffer,
+                           offset + base * Configuration.WORD_SIZE);
+            }
+            // Make the file cover the whole heap, so every chunk can be
+            // mapped.
+            long end = offset + size * Configuration.WORD_SIZE;
+            if (channel.size() < end)
+                writeFully(channel, ByteBuffer.allocate(1), end - 1);
+        }
+    }
+
+    /**
+     * Restore a simulator from a snapshot, parsing the saved program
+     * @param file the snapshot
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator
+     * @return a simulator in the state that was saved
+     * @throws IOException if reading fails, or the file is not a snapshot
+     */
+    public static IRSimulator restore(Path file, ExecutionMode mode,
+            IntrinsicRegistry intrinsics) throws IOException {
+        return restore(file, null, mode, intrinsics);
+    }
+
+    /**
+     * Restore a simulator from a snapshot of a program that is already at
+     * hand, which saves parsing the program again
+     * @param file the snapshot
+     * @param compUnit the program, which must be the one that was saved, or
+     *          null to parse the saved program
+     * @param mode how function bodies are executed
+     * @param intrinsics the functions implemented by the simulator
+     * @return a simulator in the state that was saved
+     * @throws IOException if reading fails, or the file is not a snapshot of
+     *          {@code compUnit}
+     */
+    public static IRSimulator restore(Path file, IRCompUnit compUnit,
+            ExecutionMode mode, IntrinsicRegistry intrinsics)
+            throws IOException {
+        return restore(file, null, compUnit, mode, intrinsics);
+    }
+
+    /**
+     * Restore a simulator from a snapshot of a prepared program, which saves
+     * preparing the program again, e.g., to restore many simulators from
+     * the same snapshot
+     * @param file the snapshot
+     * @param program the program, which must be the one that was saved
+     * @return a simulator in the state that was saved
+     * @throws IOException if reading fails, or the file is not a snapshot of
+     *          {@code program}
+     */
+    public static IRSimulator restore(Path file, PreparedProgram program)
+            throws IOException {
+        return restore(file, program, program.compUnit, null, null);
+    }
+
+    private static IRSimulator restore(Path file, PreparedProgram program,
+            IRCompUnit compUnit, ExecutionMode mode,
+            IntrinsicRegistry intrinsics) throws IOException {
+        // Private mappings need a channel that is open for writing, though
+        // the file itself is never written.
+        try (FileChannel channel = FileChannel.open(file,
+                                                    StandardOpenOption.READ,
+                                                    StandardOpenOption.WRITE)) {
+            InputStream stream = Channels.newInputStream(channel);
+            DataInputStream in =
+                    new DataInputStream(new BufferedInputStream(stream));
+            if (in.readInt() != MAGIC)
+                throw new IOException(file + " is not a snapshot");
+            if (in.readInt() != VERSION)
+                throw new IOException("Unsupported snapshot version");
+            long offset = in.readLong();
+            ByteOrder order = in.readBoolean()
+                    ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            String text = new String(bytes, StandardCharsets.UTF_8);
+            if (compUnit == null)
+                compUnit = parse(text);
+            else if (!print(compUnit).equals(text))
+                throw new IOException("Snapshot was taken of a different "
+                        + "program");
+            if (program == null)
+                program = new PreparedProgram(compUnit, mode, intrinsics);
+            long heapPtr = in.readLong();
+            long size = in.readLong();
+            long seed = in.readLong();
+            boolean[] saved = new boolean[chunkCount(size)];
+            for (int i = 0; i < saved.length; i++)
+                saved[i] = in.readBoolean();
+            Heap heap =
+                    new MappedHeap(channel, order, offset, size, seed, saved);
+
+            // The saved registers are matched against the codes assigned
+            // while the program is prepared.
+            IRSimulator sim = new IRSimulator(program,
+                                              heap,
+                                              new BumpAllocator(heapPtr),
+                                              false);
+            sim.globals.read(in);
+            return sim;
+        }
+    }
+
+    private static int chunkCount(long size) {
+        return (int) ((size + CHUNK_WORDS - 1) >>> CHUNK_SHIFT);
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer,
+            long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
+
+    private static String print(IRCompUnit compUnit) {
+        StringWriter sw = new StringWriter();
+        try (PrintWriter pw = new PrintWriter(sw);
+             SExpPrinter sp = new CodeWriterSExpPrinter(pw)) {
+            compUnit.printSExp(sp);
+        }
+        return sw.toString();
+    }
+
+    private static IRCompUnit parse(String text) throws IOException {
+        try (StringReader r = new StringReader(text)) {
+            IRParser parser = new IRParser(new IRLexer(r));
+            return parser.parse().<IRCompUnit> value();
+        }
+        catch (RuntimeException | IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // Used by CUP to indicate an unrecoverable error.
+            throw new IOException("Cannot parse the saved program: "
+                    + e.getMessage(), e);
+        }
+    }
+}
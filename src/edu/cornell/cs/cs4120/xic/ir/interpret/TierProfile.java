@@ -0,0 +1,140 @@
+package edu.cornell.cs.cs4120.xic.ir.interpret;
+
+import edu.cornell.cs.cs4120.xic.ir.interpret.IRSimulator.ExecutionMode;
+
+/**
+ * Execution counters of a function under
+ * {@link IRSimulator.ExecutionMode#TIERED} execution.
+ *
+ * Every function starts in the tree interpreter.  Once its invocation count
+ * or its back-edge count (jumps backwards taken by the tree interpreter)
+ * crosses the simulator's threshold, it is promoted to a faster engine.
+ */
+public class TierProfile {
+    private final String name;
+    private long invocations;
+    private long backEdges;
+    private ExecutionMode tier;
+
+    TierProfile(String name) {
+        this.name = name;
+        tier = ExecutionMode.TREE;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     *
+     * @return the number of times the function has been called
+     */
+    public long invocations() {
+        return invocations;
+    }
+
+    /**
+     *
+     * @return the number of backward jumps taken while the function was
+     *          interpreted by the tree interpreter
+     */
+    public long backEdges() {
+        return backEdges;
+    }
+
+    /**
+     *
+     * @return the engine currently used for new calls of the function
+     */
+    public ExecutionMode tier() {
+        return tier;
+    }
+
+    public boolean isPromoted() {
+        return tier != ExecutionMode.TREE;
+    }
+
+    long countInvocation() {
+        return ++invocations;
+    }
+
+    long countBackEdge() {
+        return ++backEdges;
+    }
+
+    void setTier(ExecutionMode tier) {
+        this.tier = tier;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + tier + " (" + invocations + " calls, " + backEdges
+                + " back edges)";
+    }
+
+    /**
+     * A promotion of a function to a faster engine
+     */
+    public static class Transition {
+        private final String function;
+        private final ExecutionMode from;
+        private final ExecutionMode to;
+        private final long invocations;
+        private final long backEdges;
+        private final boolean byBackEdges;
+
+        Transition(TierProfile profile, ExecutionMode from,
+                boolean byBackEdges) {
+            function = profile.name;
+            this.from = from;
+            to = profile.tier;
+            invocations = profile.invocations;
+            backEdges = profile.backEdges;
+            this.byBackEdges = byBackEdges;
+        }
+
+        public String function() {
+            return function;
+        }
+
+        public ExecutionMode from() {
+            return from;
+        }
+
+        public ExecutionMode to() {
+            return to;
+        }
+
+        /**
+         *
+         * @return the invocation count at the time of the transition
+         */
+        public long invocations() {
+            return invocations;
+        }
+
+        /**
+         *
+         * @return the back-edge count at the time of the transition
+         */
+        public long backEdges() {
+            return backEdges;
+        }
+
+        /**
+         *
+         * @return whether the transition was triggered by the back-edge
+         *          count rather than the invocation count
+         */
+        public boolean byBackEdges() {
+            return byBackEdges;
+        }
+
+        @Override
+        public String toString() {
+            return function + ": " + from + " -> " + to + " after "
+                    + invocations + " calls, " + backEdges + " back edges"
+                    + (byBackEdges ? " (loop)" : "");
+        }
+    }
+}